@@ -32,4 +32,18 @@ public class BindingConstants {
     public static final String COMMAND_KEY = "command_key";
     public static final String COMMAND_CLASS = "command_class";
     public static final String COMMAND_FIELD = "command_field";
+
+    // Channel property holding the type of the entity the channel was built for
+    public static final String CHANNEL_PROPERTY_ENTITY_TYPE = "entity_type";
+
+    // Thing property identifying the firmware the channels of the thing were built for
+    public static final String PROPERTY_INTERROGATED_FIRMWARE = "interrogated_firmware";
+
+    // Binding configuration
+    public static final String CONFIG_MAX_CONCURRENT_CONNECTS = "maxConcurrentConnects";
+
+    // Channel configuration set by the user
+    public static final String STATE_WINDOW = "stateWindow";
+    public static final String DEADBAND = "deadband";
+    public static final String COMMAND_DEBOUNCE = "commandDebounce";
 }
@@ -22,13 +22,25 @@ import org.eclipse.jdt.annotation.Nullable;
 
 public class ESPHomeConfiguration {
 
+    public static final int DEFAULT_INBOUND_QUEUE_SIZE = 256;
+
     public String hostname;
     @Nullable
     public String password;
+    @Nullable
+    public String encryptionKey;
 
     public int port = 6053;
 
+    public int connectTimeout = 10;
+
     public int pingInterval = 10;
 
     public int maxPingTimeouts = 4;
+
+    public int maxFrameSize = 1048576;
+
+    public int inboundQueueSize = DEFAULT_INBOUND_QUEUE_SIZE;
+
+    public boolean pipelineHandshake = false;
 }
@@ -23,7 +23,10 @@ import no.seime.openhab.binding.esphome.internal.comm.ProtocolAPIError;
 @NonNullByDefault
 public interface PacketListener {
 
-    void onPacket(GeneratedMessageV3 message) throws ProtocolAPIError, IOException;
+    /**
+     * @param messageType the wire id of the message, as assigned in the API definition
+     */
+    void onPacket(int messageType, GeneratedMessageV3 message) throws ProtocolAPIError, IOException;
 
     void onEndOfStream();
 
@@ -1,133 +1,91 @@
 package no.seime.openhab.binding.esphome.internal.comm;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.ClosedSelectorException;
+import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
+/**
+ * Pool of {@link SelectorLoop}s, each with its own thread. Every channel is pinned to one loop for its lifetime, so
+ * reads and decoding for one device never contend with devices served by other loops. The loops only do I/O and
+ * decoding, decoded messages are handled by the listener on its own executor.
+ * <p>
+ * Connects are non-blocking and completed by the loops. How many devices connect at the same time is limited by the
+ * {@link no.seime.openhab.binding.esphome.internal.util.ReconnectCoordinator}, not here.
+ *
+ * @author Arne Seime - Initial contribution
+ */
 public class ConnectionSelector {
 
-    private final Logger logger = LoggerFactory.getLogger(ConnectionSelector.class);
-
-    private Selector selector;
-
-    private boolean keepRunning = true;
+    private final SelectorLoop[] loops;
 
-    private boolean selectorOpen;
+    private final Map<SocketChannel, SelectorLoop> connectionMap = new ConcurrentHashMap<>();
 
     public ConnectionSelector() throws IOException {
-        selector = Selector.open();
-        selectorOpen = true;
-    }
-
-    private Map<SocketChannel, StreamHandler> connectionMap = new ConcurrentHashMap<>();
-
-    public void start() {
-
-        Thread selectorThread = new Thread(() -> {
-            logger.debug("Starting selector thread");
-            while (keepRunning) {
-                try {
-                    selector.select(1000);
-                    // token representing the registration of a SelectableChannel with a Selector
-                    Set<SelectionKey> keys = selector.selectedKeys();
-                    logger.trace("Selected keys: {}", keys.size());
-                    Iterator<SelectionKey> keyIterator = keys.iterator();
-                    while (keyIterator.hasNext()) {
-                        SelectionKey readyKey = keyIterator.next();
-                        processKey(readyKey);
-                        keyIterator.remove();
-                    }
-                } catch (ClosedSelectorException e) {
-                    logger.debug("Selector closed");
-                    keepRunning = false;
-                } catch (Exception e) {
-                    logger.warn("Error while selecting", e);
-                    keepRunning = false;
-                }
-            }
-            logger.debug(
-                    "Selector thread stopped. This should only happen on bundle stop, not during regular operation. See previous log statements for more information.");
-        });
-        selectorThread.setName("ESPHome Reader");
-        selectorThread.start();
+        this(Runtime.getRuntime().availableProcessors());
     }
 
-    private void processKey(SelectionKey readyKey) {
-        StreamHandler streamHandler = (StreamHandler) readyKey.attachment();
-        logger.trace("Processing key {}", readyKey);
-        // Tests whether this key's channel is ready to accept a new socket connection
-        try {
-            if (readyKey.isReadable()) {
-                SocketChannel channel = (SocketChannel) readyKey.channel();
-                ByteBuffer buffer = ByteBuffer.allocate(128);
-                int read = channel.read(buffer);
-                if (read == -1) {
-                    streamHandler.endOfStream();
-                } else {
-                    processReceivedData(streamHandler, buffer, channel);
-                }
-
-            } else {
-                logger.trace("Key not readable");
-            }
-        } catch (IOException e) {
-            logger.debug("Socket exception", e);
-            streamHandler.endOfStream();
+    public ConnectionSelector(int numLoops) throws IOException {
+        loops = new SelectorLoop[Math.max(1, numLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop("ESPHome Reader " + (i + 1));
         }
     }
 
-    private void processReceivedData(StreamHandler streamHandler, ByteBuffer buffer, SocketChannel channel)
-            throws IOException {
-        try {
-            logger.trace("Received data");
-            streamHandler.processReceivedData(buffer);
-        } catch (Exception e) {
-            channel.close();
-            streamHandler.onParseError(e);
+    public void start() {
+        for (SelectorLoop loop : loops) {
+            loop.start();
         }
     }
 
     public void stop() {
-        if (selectorOpen) {
-            keepRunning = false;
-            selector.wakeup();
-            try {
-                selector.close();
-            } catch (IOException e) {
-                logger.debug("Error closing selector", e);
-            }
-            selectorOpen = false;
+        for (SelectorLoop loop : loops) {
+            loop.stop();
         }
     }
 
-    public void register(SocketChannel socketChannel, StreamHandler packetStreamReader) {
-        connectionMap.put(socketChannel, packetStreamReader);
-        try {
-            SelectionKey key = socketChannel.register(selector, SelectionKey.OP_READ);
-            key.attach(packetStreamReader);
-            selector.wakeup();
-        } catch (IOException e) {
-            logger.warn("Error while registering channel", e);
-        }
+    /**
+     * Register an unconnected, non-blocking channel and connect it to the address. The connection is notified through
+     * {@link ESPHomeConnection#onConnected} or {@link ESPHomeConnection#onConnectFailed} on the loop thread.
+     */
+    public SelectionKey connect(SocketChannel socketChannel, InetSocketAddress address, ESPHomeConnection connection,
+            int connectTimeoutMillis) throws IOException {
+        SelectorLoop loop = leastLoadedLoop();
+        SelectionKey key = loop.register(socketChannel, connection, 0);
+        connectionMap.put(socketChannel, loop);
+        loop.connect(key, address, connectTimeoutMillis);
+        return key;
     }
 
-    public void unregister(SocketChannel socketChannel) {
-        connectionMap.remove(socketChannel);
+    /**
+     * Close the channel and stop serving it
+     *
+     * @param onClosed run on a loop thread once the loop is done with the channel, to release state that only the
+     *            loop thread may touch
+     */
+    public void unregister(SocketChannel socketChannel, Runnable onClosed) {
+        SelectorLoop loop = connectionMap.remove(socketChannel);
+        if (loop != null) {
+            loop.unregister(socketChannel);
+            loop.execute(onClosed);
+        } else {
+            // Never registered, so no loop holds state of the channel. Still run on a loop thread, as callers expect
+            leastLoadedLoop().execute(onClosed);
+        }
+    }
 
-        try {
-            socketChannel.close();
-        } catch (IOException e) {
-            logger.warn("Error while closing channel", e);
+    /**
+     * Balancing policy: the loop currently serving the fewest channels, first one on ties
+     */
+    private SelectorLoop leastLoadedLoop() {
+        SelectorLoop selected = loops[0];
+        for (int i = 1; i < loops.length; i++) {
+            if (loops[i].getChannelCount() < selected.getChannelCount()) {
+                selected = loops[i];
+            }
         }
+        return selected;
     }
 }
@@ -15,69 +15,371 @@ package no.seime.openhab.binding.esphome.internal.comm;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.protobuf.GeneratedMessageV3;
 
+/**
+ * A connection to a single ESPHome device. Outbound messages are queued and written by the selector loop the
+ * connection is registered with whenever the socket accepts more data, so senders never block on a slow device.
+ *
+ * @author Arne Seime - Initial contribution
+ */
 public class ESPHomeConnection {
 
+    public static final int DEFAULT_MAX_QUEUED_MESSAGES = 128;
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Maximum number of queued messages coalesced into a single gathering write
+     */
+    private static final int MAX_BATCH_SIZE = 16;
+
     private final Logger logger = LoggerFactory.getLogger(ESPHomeConnection.class);
 
-    private SocketChannel socketChannel;
+    private volatile SocketChannel socketChannel;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private volatile SelectionKey selectionKey;
+
+    private volatile boolean connected;
+    // System.nanoTime() of the last read from the socket, or of creating the connection
+    private volatile long lastReceiveNanos = System.nanoTime();
+    private final CompletableFuture<Void> connectFuture = new CompletableFuture<>();
 
     private StreamHandler streamHandler;
     private final ConnectionSelector connectionSelector;
 
     private String hostname;
 
-    public ESPHomeConnection(ConnectionSelector connectionSelector, PlainTextStreamHandler streamHandler,
-            String hostname) {
+    private final int maxQueuedMessages;
+
+    private final Queue<OutboundMessage> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedMessages = new AtomicInteger();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+    // Only accessed by the selector thread. Frames of the batch being written are laid out as header/payload pairs,
+    // with all headers encoded back to back into the same scratch buffer
+    private final ByteBuffer headerScratch = ByteBuffer.allocate(MAX_BATCH_SIZE * StreamHandler.MAX_HEADER_SIZE);
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH_SIZE * 2];
+    private final OutboundMessage[] batchMessages = new OutboundMessage[MAX_BATCH_SIZE];
+    private int batchOffset;
+    private int batchLength;
+    // Transport handshake data written ahead of any message
+    private ByteBuffer handshakeData;
+
+    public ESPHomeConnection(ConnectionSelector connectionSelector, StreamHandler streamHandler, String hostname) {
+        this(connectionSelector, streamHandler, hostname, DEFAULT_MAX_QUEUED_MESSAGES);
+    }
+
+    public ESPHomeConnection(ConnectionSelector connectionSelector, StreamHandler streamHandler, String hostname,
+            int maxQueuedMessages) {
         this.streamHandler = streamHandler;
         this.connectionSelector = connectionSelector;
         this.hostname = hostname;
+        this.maxQueuedMessages = maxQueuedMessages;
     }
 
-    public synchronized void send(GeneratedMessageV3 message) throws ProtocolAPIError {
-        try {
-            logger.debug("[{}] Sending message: {}", hostname, message.getClass().getSimpleName());
-            byte[] serializedMessage = streamHandler.encodeFrame(message);
-            ByteBuffer buffer = ByteBuffer.wrap(serializedMessage);
-            while (buffer.hasRemaining()) {
-                logger.trace("Writing data");
-                socketChannel.write(buffer);
+    /**
+     * Queue a message for sending. Never blocks. Messages sent while the connection is still being established are
+     * written once it is.
+     *
+     * @return a future completed once the whole frame has been written to the socket, or failed if the connection
+     *         closed before that
+     * @throws ProtocolAPIError if not connected, or the message was rejected because the outbound queue is full
+     */
+    public CompletableFuture<Void> send(GeneratedMessageV3 message) throws ProtocolAPIError {
+        SelectionKey key = selectionKey;
+        if (key == null || !key.isValid()) {
+            throw new ProtocolAPIError(String.format("[%s] Error sending message %s: not connected", hostname,
+                    message.getClass().getSimpleName()));
+        }
+
+        if (queuedMessages.incrementAndGet() > maxQueuedMessages) {
+            queuedMessages.decrementAndGet();
+            throw new ProtocolAPIError(String.format("[%s] Error sending message %s: outbound queue full (%d)",
+                    hostname, message.getClass().getSimpleName(), maxQueuedMessages));
+        }
+
+        logger.debug("[{}] Sending message: {}", hostname, message.getClass().getSimpleName());
+        OutboundMessage outboundMessage = new OutboundMessage(message);
+        writeQueue.offer(outboundMessage);
+        // Before the connect completes, write interest is raised by onConnected instead
+        if (writeScheduled.compareAndSet(false, true) && connected) {
+            try {
+                key.interestOpsOr(SelectionKey.OP_WRITE);
+                key.selector().wakeup();
+            } catch (CancelledKeyException e) {
+                // Closed meanwhile. The messages being written are failed by the selector thread
+                failQueued();
+                throw new ProtocolAPIError(String.format("[%s] Error sending message %s: connection closed", hostname,
+                        message.getClass().getSimpleName()));
             }
-        } catch (IOException e) {
-            throw new ProtocolAPIError(String.format("[%s] Error sending message: %s ", hostname, e));
         }
+        return outboundMessage.future;
     }
 
-    public void connect(InetSocketAddress address) throws ProtocolAPIError {
+    /**
+     * Write as much of the queued data as the socket accepts. Called by the selector thread when the socket is
+     * writable. Messages queued since the last write are coalesced into one gathering write. Write interest is dropped
+     * once the queue is empty and raised again by the next {@link #send}.
+     */
+    void writeQueued(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (handshakeData != null) {
+            channel.write(handshakeData);
+            if (handshakeData.hasRemaining()) {
+                return;
+            }
+            handshakeData = null;
+        }
+        if (!streamHandler.isHandshakeComplete()) {
+            // Queued messages are held back until onHandshakeComplete
+            key.interestOpsAnd(~SelectionKey.OP_WRITE);
+            return;
+        }
+        while (true) {
+            if (batchOffset == batchLength && !fillBatch()) {
+                key.interestOpsAnd(~SelectionKey.OP_WRITE);
+                writeScheduled.set(false);
+                // A message may have been queued after the poll but before the flag was cleared
+                if (writeQueue.isEmpty() || !writeScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+                key.interestOpsOr(SelectionKey.OP_WRITE);
+                continue;
+            }
+
+            logger.trace("Writing {} buffers", batchLength - batchOffset);
+            channel.write(batch, batchOffset, batchLength - batchOffset);
+            while (batchOffset < batchLength && !batch[batchOffset].hasRemaining()) {
+                if (batchOffset % 2 == 1) {
+                    // Payload written, so is the whole frame
+                    batchMessages[batchOffset / 2].future.complete(null);
+                    batchMessages[batchOffset / 2] = null;
+                }
+                batch[batchOffset++] = null;
+            }
+            if (batchOffset < batchLength) {
+                // Socket send buffer full, continue when the selector reports the socket writable again
+                return;
+            }
+        }
+    }
+
+    /**
+     * Encode up to {@link #MAX_BATCH_SIZE} queued messages into the batch
+     *
+     * @return false if the queue was empty
+     */
+    private boolean fillBatch() throws IOException {
+        batchOffset = 0;
+        batchLength = 0;
+        headerScratch.clear();
+        int count = 0;
+        OutboundMessage outboundMessage;
+        while (count < MAX_BATCH_SIZE && (outboundMessage = writeQueue.poll()) != null) {
+            queuedMessages.decrementAndGet();
+            int headerStart = headerScratch.position();
+            ByteBuffer payload;
+            try {
+                payload = streamHandler.encodeFrame(outboundMessage.message, headerScratch);
+            } catch (ProtocolException e) {
+                outboundMessage.future.completeExceptionally(e);
+                // The stream state is undefined after a failed encode
+                throw new IOException(String.format("[%s] Error encoding message %s", hostname,
+                        outboundMessage.message.getClass().getSimpleName()), e);
+            }
+            ByteBuffer header = headerScratch.duplicate();
+            header.limit(headerScratch.position());
+            header.position(headerStart);
+            batch[batchLength++] = header;
+            batch[batchLength++] = payload;
+            batchMessages[count++] = outboundMessage;
+        }
+        return count > 0;
+    }
+
+    /**
+     * Stop or resume reading from the device, to hold it back while received messages are not handled fast enough.
+     * Safe to call from any thread. Write interest is never changed here, nor read interest elsewhere once connected
+     */
+    public void setReading(boolean reading) {
+        SelectionKey key = selectionKey;
+        if (key == null) {
+            return;
+        }
         try {
+            if (reading) {
+                key.interestOpsOr(SelectionKey.OP_READ);
+                key.selector().wakeup();
+            } else {
+                key.interestOpsAnd(~SelectionKey.OP_READ);
+            }
+        } catch (CancelledKeyException e) {
+            // Closed meanwhile
+        }
+    }
 
-            socketChannel = SocketChannel.open(address);
+    StreamHandler getStreamHandler() {
+        return streamHandler;
+    }
+
+    /**
+     * Called by the selector thread when data was read from the socket
+     */
+    void onReceive(long nanos) {
+        lastReceiveNanos = nanos;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when data was last received from the device
+     */
+    public long getLastReceiveNanos() {
+        return lastReceiveNanos;
+    }
+
+    public CompletableFuture<Void> connect(InetSocketAddress address) throws ProtocolAPIError {
+        return connect(address, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Start connecting to the device without blocking. The connect is completed by the selector loop.
+     *
+     * @return a future completed when the connection is established, or failed if the connect fails, times out or the
+     *         connection is closed before that
+     */
+    public CompletableFuture<Void> connect(InetSocketAddress address, int connectTimeoutMillis)
+            throws ProtocolAPIError {
+        try {
+            socketChannel = SocketChannel.open();
             socketChannel.configureBlocking(false);
-            connectionSelector.register(socketChannel, streamHandler);
+            selectionKey = connectionSelector.connect(socketChannel, address, this, connectTimeoutMillis);
 
             logger.info("[{}] Opening socket to {} at port {}.", hostname, hostname, address.getPort());
 
         } catch (Exception e) {
+            SocketChannel openedChannel = socketChannel;
+            if (openedChannel != null) {
+                try {
+                    openedChannel.close();
+                } catch (IOException closeError) {
+                    e.addSuppressed(closeError);
+                }
+            }
             throw new ProtocolAPIError("Failed to connect to '" + hostname + "' port " + address.getPort(), e);
         }
+        return connectFuture;
+    }
+
+    /**
+     * Called by the selector thread when the connect has completed
+     */
+    void onConnected(SelectionKey key) {
+        try {
+            handshakeData = streamHandler.onConnected();
+        } catch (ProtocolException e) {
+            onConnectFailed(e);
+            return;
+        }
+        connected = true;
+        // Write the handshake, and pick up messages queued while connecting
+        boolean write = handshakeData != null || writeScheduled.get();
+        key.interestOps(SelectionKey.OP_READ | (write ? SelectionKey.OP_WRITE : 0));
+        logger.debug("[{}] Socket connected", hostname);
+        connectFuture.complete(null);
+    }
+
+    /**
+     * Called by the selector thread when the stream handler has completed its transport handshake
+     */
+    void onHandshakeComplete(SelectionKey key) {
+        logger.debug("[{}] Transport handshake complete", hostname);
+        if (writeScheduled.get()) {
+            key.interestOpsOr(SelectionKey.OP_WRITE);
+        }
     }
 
+    /**
+     * Called by the selector thread when the connect has failed or timed out
+     */
+    void onConnectFailed(Exception cause) {
+        String reason = Objects.requireNonNullElse(cause.getMessage(), cause.getClass().getSimpleName());
+        connectFuture.completeExceptionally(
+                new ProtocolAPIError(String.format("Failed to connect to '%s': %s", hostname, reason), cause));
+        close();
+    }
+
+    /**
+     * Close the connection. Safe to call from any thread, and more than once
+     */
     public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
         logger.info("[{}] Disconnecting socket.", hostname);
-        try {
-            if (socketChannel != null) {
-                connectionSelector.unregister(socketChannel);
-                socketChannel.close();
-                socketChannel = null;
+        SocketChannel channel = socketChannel;
+        if (channel != null) {
+            // The batch being written belongs to the selector thread, so fail it there
+            connectionSelector.unregister(channel, this::failInFlight);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("[{}] Error closing connection", hostname, e);
             }
-        } catch (IOException e) {
-            logger.debug("[{}] Error closing connection", hostname, e);
+        }
+        selectionKey = null;
+        connectFuture.completeExceptionally(
+                new ProtocolAPIError(String.format("[%s] Connection closed before connect completed", hostname)));
+        failQueued();
+    }
+
+    /**
+     * Fail the messages of the batch being written. Only called by the selector thread, once the connection is closed
+     */
+    private void failInFlight() {
+        for (int i = 0; i < batchMessages.length; i++) {
+            if (batchMessages[i] != null) {
+                batchMessages[i].future.completeExceptionally(new ProtocolAPIError(
+                        String.format("[%s] Connection closed before message was sent", hostname)));
+                batchMessages[i] = null;
+            }
+        }
+        // And anything queued while closing
+        failQueued();
+    }
+
+    /**
+     * Fail the messages not yet taken from the queue by the selector thread. Safe to call from any thread
+     */
+    private void failQueued() {
+        OutboundMessage outboundMessage;
+        while ((outboundMessage = writeQueue.poll()) != null) {
+            queuedMessages.decrementAndGet();
+            outboundMessage.future.completeExceptionally(
+                    new ProtocolAPIError(String.format("[%s] Connection closed before message was sent", hostname)));
+        }
+    }
+
+    private static class OutboundMessage {
+        private final GeneratedMessageV3 message;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private OutboundMessage(GeneratedMessageV3 message) {
+            this.message = message;
         }
     }
 }
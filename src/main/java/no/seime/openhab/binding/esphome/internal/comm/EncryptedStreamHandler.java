@@ -0,0 +1,324 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.comm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.GeneratedMessageV3;
+
+import no.seime.openhab.binding.esphome.internal.PacketListener;
+
+/**
+ * Stream handler for the encrypted ESPHome native API transport, Noise_NNpsk0_25519_ChaChaPoly_SHA256 keyed with the
+ * device's API encryption key.
+ * <p>
+ * Every frame is a 0x01 preamble and a 16 bit big-endian length followed by the frame data. The client opens with an
+ * empty hello frame and the first handshake message, and the device replies with its own hello and handshake frames.
+ * After that each frame holds a message type, length and the message, encrypted as a whole. Frames are decrypted in
+ * place in the receive buffer and parsed from there.
+ *
+ * @author Arne Seime - Initial contribution
+ */
+public class EncryptedStreamHandler implements StreamHandler {
+
+    public static final int PREAMBLE = 0x01;
+
+    static final byte[] PROLOGUE = "NoiseAPIInit\0\0".getBytes(StandardCharsets.US_ASCII);
+    static final int HEADER_SIZE = 3;
+    // Largest frame the 16 bit frame size allows
+    static final int MAX_FRAME_SIZE = 0xFFFF;
+    // Message type and length in front of the message in the encrypted frame data
+    static final int DATA_HEADER_SIZE = 4;
+
+    private static final int KEY_LENGTH = 32;
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    private static final byte[] EMPTY = new byte[0];
+
+    private enum State {
+        // Waiting for the device hello
+        HELLO,
+        // Waiting for the device handshake message
+        HANDSHAKE,
+        // Exchanging encrypted messages
+        DATA
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(EncryptedStreamHandler.class);
+
+    private final PacketListener listener;
+
+    private final int maxFrameSize;
+
+    private final NoiseHandshake handshake;
+    private NoiseCipherState sendCipher;
+    private NoiseCipherState receiveCipher;
+
+    private volatile State state = State.HELLO;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    public EncryptedStreamHandler(PacketListener listener, String encryptionKey) throws ProtocolAPIError {
+        this(listener, encryptionKey, MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @param maxFrameSize upper limit for received frames, at most {@link #MAX_FRAME_SIZE}
+     */
+    public EncryptedStreamHandler(PacketListener listener, String encryptionKey, int maxFrameSize)
+            throws ProtocolAPIError {
+        this.listener = listener;
+        this.maxFrameSize = Math.min(maxFrameSize, MAX_FRAME_SIZE);
+        try {
+            handshake = new NoiseHandshake(true, PROLOGUE, decodeKey(encryptionKey));
+        } catch (GeneralSecurityException e) {
+            throw new ProtocolAPIError("Encryption not supported by this Java runtime", e);
+        }
+    }
+
+    /**
+     * Decode a base64 encoded API encryption key, as found in the ESPHome device configuration
+     */
+    public static byte[] decodeKey(String encryptionKey) throws ProtocolAPIError {
+        byte[] key;
+        try {
+            key = Base64.getDecoder().decode(encryptionKey.trim());
+        } catch (IllegalArgumentException e) {
+            throw new ProtocolAPIError("Encryption key is not valid base64");
+        }
+        if (key.length != KEY_LENGTH) {
+            throw new ProtocolAPIError(
+                    String.format("Encryption key must be %d bytes, got %d", KEY_LENGTH, key.length));
+        }
+        return key;
+    }
+
+    @Override
+    public ByteBuffer onConnected() throws ProtocolException {
+        byte[] message;
+        try {
+            message = handshake.writeMessage();
+        } catch (GeneralSecurityException e) {
+            throw new ProtocolAPIError("Error creating handshake message", e);
+        }
+        // Empty hello frame, then the handshake frame with a leading zero byte
+        ByteBuffer data = ByteBuffer.allocate(2 * HEADER_SIZE + 1 + message.length);
+        data.put((byte) PREAMBLE).putShort((short) 0);
+        data.put((byte) PREAMBLE).putShort((short) (message.length + 1)).put((byte) 0).put(message);
+        return data.flip();
+    }
+
+    @Override
+    public boolean isHandshakeComplete() {
+        return state == State.DATA;
+    }
+
+    @Override
+    public void processReceivedData(ByteBuffer buffer) throws ProtocolException, IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            if (!this.buffer.hasRemaining()) {
+                growBuffer();
+            }
+
+            int length = Math.min(buffer.remaining(), this.buffer.remaining());
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + length);
+            this.buffer.put(buffer);
+            buffer.limit(limit);
+
+            processBuffer();
+        }
+
+        if (this.buffer.position() == 0 && this.buffer.capacity() > INITIAL_BUFFER_SIZE) {
+            // Release memory held after a large frame
+            this.buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Handle every complete frame in the buffer, then compact once
+     */
+    private void processBuffer() throws ProtocolException {
+        buffer.flip();
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int frameStart = buffer.position();
+            int preamble = buffer.get(frameStart);
+            if (preamble != PREAMBLE) {
+                if (preamble == PlainTextStreamHandler.PREAMBLE) {
+                    throw new ProtocolAPIError("Device is not using encryption, remove the encryption key");
+                }
+                throw new ProtocolAPIError(String.format("Invalid preamble %02x", preamble));
+            }
+            int frameSize = buffer.getShort(frameStart + 1) & 0xFFFF;
+            if (frameSize > maxFrameSize) {
+                throw new ProtocolAPIError(
+                        String.format("Frame with %d bytes exceeds limit %d", frameSize, maxFrameSize));
+            }
+            if (buffer.remaining() < HEADER_SIZE + frameSize) {
+                // Incomplete frame, wait for more data
+                break;
+            }
+            handleFrame(buffer.array(), buffer.arrayOffset() + frameStart + HEADER_SIZE, frameSize);
+            buffer.position(frameStart + HEADER_SIZE + frameSize);
+        }
+        buffer.compact();
+    }
+
+    private void handleFrame(byte[] frame, int offset, int length) throws ProtocolException {
+        switch (state) {
+            case HELLO -> handleHello(frame, offset, length);
+            case HANDSHAKE -> handleHandshake(frame, offset, length);
+            case DATA -> handleData(frame, offset, length);
+        }
+    }
+
+    private void handleHello(byte[] frame, int offset, int length) throws ProtocolException {
+        if (length < 1 || frame[offset] != 0x01) {
+            throw new ProtocolAPIError("Device selected an unsupported encryption protocol");
+        }
+        int nameEnd = offset + 1;
+        while (nameEnd < offset + length && frame[nameEnd] != 0) {
+            nameEnd++;
+        }
+        logger.debug("Received hello from device '{}'",
+                new String(frame, offset + 1, nameEnd - offset - 1, StandardCharsets.UTF_8));
+        state = State.HANDSHAKE;
+    }
+
+    private void handleHandshake(byte[] frame, int offset, int length) throws ProtocolException {
+        if (length < 1) {
+            throw new ProtocolAPIError("Empty handshake response");
+        }
+        if (frame[offset] != 0) {
+            String reason = new String(frame, offset + 1, length - 1, StandardCharsets.UTF_8);
+            throw new ProtocolAPIError("Encryption handshake failed, check the encryption key: " + reason);
+        }
+        try {
+            handshake.readMessage(frame, offset + 1, length - 1);
+            NoiseCipherState[] ciphers = handshake.split();
+            sendCipher = ciphers[0];
+            receiveCipher = ciphers[1];
+        } catch (GeneralSecurityException e) {
+            throw new ProtocolAPIError("Encryption handshake failed, check the encryption key", e);
+        }
+        state = State.DATA;
+    }
+
+    private void handleData(byte[] frame, int offset, int length) throws ProtocolException {
+        int dataLength;
+        try {
+            dataLength = receiveCipher.decrypt(EMPTY, frame, offset, length, frame, offset);
+        } catch (GeneralSecurityException e) {
+            throw new ProtocolAPIError("Error decrypting frame", e);
+        }
+        if (dataLength < DATA_HEADER_SIZE) {
+            throw new ProtocolAPIError(String.format("Decrypted frame too short, %d bytes", dataLength));
+        }
+        int messageType = ((frame[offset] & 0xFF) << 8) | (frame[offset + 1] & 0xFF);
+        int messageLength = ((frame[offset + 2] & 0xFF) << 8) | (frame[offset + 3] & 0xFF);
+        if (messageLength > dataLength - DATA_HEADER_SIZE) {
+            throw new ProtocolAPIError(String.format("Message of type %d with length %d exceeds frame of %d bytes",
+                    messageType, messageLength, dataLength));
+        }
+
+        int messageOffset = offset + DATA_HEADER_SIZE;
+        if (logger.isDebugEnabled()) {
+            logger.debug("Received packet of type {} with data {}", messageType,
+                    Arrays.copyOfRange(frame, messageOffset, messageOffset + messageLength));
+        }
+        try {
+            GeneratedMessageV3 message = MessageCodec.parse(messageType,
+                    CodedInputStream.newInstance(frame, messageOffset, messageLength));
+            if (message != null) {
+                listener.onPacket(messageType, message);
+            } else {
+                logger.debug("Ignoring packet of unknown type {}", messageType);
+            }
+        } catch (ProtocolAPIError | IOException e) {
+            logger.warn("Error parsing packet", e);
+            listener.onParseError();
+        }
+    }
+
+    private void growBuffer() throws ProtocolAPIError {
+        if (buffer.capacity() >= HEADER_SIZE + maxFrameSize) {
+            throw new ProtocolAPIError("Frame exceeds receive buffer");
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, HEADER_SIZE + maxFrameSize));
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+
+    @Override
+    public byte[] encodeFrame(GeneratedMessageV3 message) throws ProtocolException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ByteBuffer payload = encodeFrame(message, header);
+        byte[] frame = new byte[HEADER_SIZE + payload.remaining()];
+        header.flip().get(frame, 0, HEADER_SIZE);
+        payload.get(frame, HEADER_SIZE, payload.remaining());
+        return frame;
+    }
+
+    @Override
+    public ByteBuffer encodeFrame(GeneratedMessageV3 message, ByteBuffer header) throws ProtocolException {
+        if (state != State.DATA) {
+            throw new ProtocolAPIError("Encryption handshake not complete");
+        }
+        int messageType = MessageCodec.messageId(message);
+        int messageLength = message.getSerializedSize();
+        int dataLength = DATA_HEADER_SIZE + messageLength;
+        if (dataLength + NoiseCipherState.TAG_LENGTH > MAX_FRAME_SIZE) {
+            throw new ProtocolAPIError(String.format("Message of type %d with length %d exceeds frame size limit",
+                    messageType, messageLength));
+        }
+
+        // Serialized and then encrypted in place in the frame array
+        byte[] frame = new byte[dataLength + NoiseCipherState.TAG_LENGTH];
+        frame[0] = (byte) (messageType >> 8);
+        frame[1] = (byte) messageType;
+        frame[2] = (byte) (messageLength >> 8);
+        frame[3] = (byte) messageLength;
+        try {
+            CodedOutputStream output = CodedOutputStream.newInstance(frame, DATA_HEADER_SIZE, messageLength);
+            message.writeTo(output);
+            output.checkNoSpaceLeft();
+            int frameSize = sendCipher.encrypt(EMPTY, frame, 0, dataLength, frame, 0);
+            header.put((byte) PREAMBLE).putShort((short) frameSize);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new ProtocolAPIError("Error encrypting message of type " + messageType, e);
+        }
+        return ByteBuffer.wrap(frame);
+    }
+
+    @Override
+    public void endOfStream() {
+        listener.onEndOfStream();
+    }
+
+    @Override
+    public void onParseError(Exception e) {
+        logger.error("Error parsing packet", e);
+        listener.onParseError();
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.comm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.GeneratedMessageV3;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Parser;
+
+import io.esphome.api.Api;
+
+/**
+ * Static codec tables for the ESPHome API messages, built once per JVM from the generated protobuf classes.
+ * Message ids index a dense array of {@link Parser}s, so decoding a frame is an array load and a direct call to the
+ * generated parser without any reflection.
+ *
+ * @author Arne Seime - Initial contribution
+ */
+public final class MessageCodec {
+
+    /**
+     * Largest message id defined by the API
+     */
+    public static final int MAX_MESSAGE_ID;
+
+    private static final Parser<? extends GeneratedMessageV3>[] PARSERS;
+
+    private static final Map<Class<? extends GeneratedMessageV3>, Integer> MESSAGE_IDS;
+
+    static {
+        Map<Integer, Parser<? extends GeneratedMessageV3>> parsers = new HashMap<>();
+        Map<Class<? extends GeneratedMessageV3>, Integer> messageIds = new HashMap<>();
+        int maxId = 0;
+        for (Descriptors.Descriptor messageDescriptor : Api.getDescriptor().getMessageTypes()) {
+            int id = messageDescriptor.getOptions().getExtension(io.esphome.api.ApiOptions.id);
+            if (id > 0) {
+                try {
+                    Class<? extends GeneratedMessageV3> messageClass = Class
+                            .forName(messageDescriptor.getFullName()).asSubclass(GeneratedMessageV3.class);
+                    @SuppressWarnings("unchecked")
+                    Parser<? extends GeneratedMessageV3> parser = (Parser<? extends GeneratedMessageV3>) messageClass
+                            .getMethod("parser").invoke(null);
+                    parsers.put(id, parser);
+                    messageIds.put(messageClass, id);
+                    maxId = Math.max(maxId, id);
+                } catch (ReflectiveOperationException e) {
+                    throw new ExceptionInInitializerError(e);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        Parser<? extends GeneratedMessageV3>[] parserTable = new Parser[maxId + 1];
+        parsers.forEach((id, parser) -> parserTable[id] = parser);
+        PARSERS = parserTable;
+        MESSAGE_IDS = Map.copyOf(messageIds);
+        MAX_MESSAGE_ID = maxId;
+    }
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Parse a message with the given wire id
+     *
+     * @return the message, or null if the id is not known
+     */
+    public static GeneratedMessageV3 parse(int messageId, CodedInputStream input)
+            throws InvalidProtocolBufferException {
+        Parser<? extends GeneratedMessageV3> parser = messageId >= 0 && messageId < PARSERS.length ? PARSERS[messageId]
+                : null;
+        return parser != null ? parser.parseFrom(input) : null;
+    }
+
+    /**
+     * Get the wire id of a message
+     *
+     * @throws IllegalArgumentException if the message is not part of the API
+     */
+    public static int messageId(GeneratedMessageV3 message) {
+        return messageId(message.getClass());
+    }
+
+    /**
+     * Get the wire id of a message class
+     *
+     * @throws IllegalArgumentException if the class is not part of the API
+     */
+    public static int messageId(Class<? extends GeneratedMessageV3> messageClass) {
+        Integer id = MESSAGE_IDS.get(messageClass);
+        if (id == null) {
+            throw new IllegalArgumentException("Not an ESPHome API message: " + messageClass.getName());
+        }
+        return id;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.comm;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Noise CipherState for ChaChaPoly. The cipher instance, key and nonce buffer are reused for every message, and input
+ * and output may be the same array so that frames can be encrypted and decrypted in place.
+ *
+ * @author Arne Seime - Initial contribution
+ */
+class NoiseCipherState {
+
+    static final int TAG_LENGTH = 16;
+
+    private final Cipher cipher;
+    private final SecretKeySpec key;
+    private final byte[] nonce = new byte[12];
+    private long counter;
+
+    NoiseCipherState(byte[] key) throws GeneralSecurityException {
+        this.cipher = Cipher.getInstance("ChaCha20-Poly1305");
+        this.key = new SecretKeySpec(key, "ChaCha20");
+    }
+
+    /**
+     * Encrypt, appending the authentication tag
+     *
+     * @return number of bytes written to the output, input length plus {@link #TAG_LENGTH}
+     */
+    int encrypt(byte[] associatedData, byte[] input, int inputOffset, int length, byte[] output, int outputOffset)
+            throws GeneralSecurityException {
+        init(Cipher.ENCRYPT_MODE, associatedData);
+        return cipher.doFinal(input, inputOffset, length, output, outputOffset);
+    }
+
+    /**
+     * Decrypt and verify the authentication tag
+     *
+     * @return number of bytes written to the output, input length minus {@link #TAG_LENGTH}
+     */
+    int decrypt(byte[] associatedData, byte[] input, int inputOffset, int length, byte[] output, int outputOffset)
+            throws GeneralSecurityException {
+        init(Cipher.DECRYPT_MODE, associatedData);
+        return cipher.doFinal(input, inputOffset, length, output, outputOffset);
+    }
+
+    private void init(int mode, byte[] associatedData) throws GeneralSecurityException {
+        // 32 bits of zeros followed by the little-endian 64 bit counter
+        long n = counter++;
+        for (int i = 0; i < 8; i++) {
+            nonce[4 + i] = (byte) (n >>> (8 * i));
+        }
+        // Allocates per frame: the JCE only takes a new nonce through a parameter spec, which copies it, and the
+        // ChaCha20-Poly1305 cipher must be initialized for every message
+        cipher.init(mode, key, new IvParameterSpec(nonce));
+        if (associatedData.length > 0) {
+            cipher.updateAAD(associatedData);
+        }
+    }
+}
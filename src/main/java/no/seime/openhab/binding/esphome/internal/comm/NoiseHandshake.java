@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.comm;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Handshake state for the Noise_NNpsk0_25519_ChaChaPoly_SHA256 protocol used by the ESPHome native API, using only
+ * the algorithms provided by the JDK. The pattern is
+ *
+ * <pre>
+ * -> psk, e
+ * <- e, ee
+ * </pre>
+ *
+ * Neither message carries a payload.
+ *
+ * @author Arne Seime - Initial contribution
+ */
+class NoiseHandshake {
+
+    private static final int DH_LENGTH = 32;
+
+    static final int MESSAGE_LENGTH = DH_LENGTH + NoiseCipherState.TAG_LENGTH;
+
+    private static final byte[] PROTOCOL_NAME = "Noise_NNpsk0_25519_ChaChaPoly_SHA256"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EMPTY = new byte[0];
+
+    // X.509 SubjectPublicKeyInfo header of a raw X25519 public key
+    private static final byte[] X25519_KEY_PREFIX = { 0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21,
+            0x00 };
+
+    private final boolean initiator;
+    private final byte[] psk;
+
+    private byte[] chainingKey;
+    private byte[] hash;
+    private NoiseCipherState cipher;
+
+    private KeyPair localEphemeral;
+    private PublicKey remoteEphemeral;
+
+    NoiseHandshake(boolean initiator, byte[] prologue, byte[] psk) throws GeneralSecurityException {
+        this.initiator = initiator;
+        this.psk = psk.clone();
+        // Protocol name is longer than the hash, so it is hashed rather than padded
+        hash = sha256(PROTOCOL_NAME);
+        chainingKey = hash.clone();
+        mixHash(prologue);
+    }
+
+    /**
+     * Write the next handshake message: {@code psk, e} for the initiator, {@code e, ee} for the responder
+     */
+    byte[] writeMessage() throws GeneralSecurityException {
+        if (initiator) {
+            mixKeyAndHash(psk);
+        }
+        localEphemeral = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+        byte[] encoded = localEphemeral.getPublic().getEncoded();
+        byte[] publicKey = Arrays.copyOfRange(encoded, encoded.length - DH_LENGTH, encoded.length);
+        mixEphemeral(publicKey);
+        if (!initiator) {
+            mixKey(dh());
+        }
+
+        // Empty payload, leaving only the authentication tag
+        byte[] message = Arrays.copyOf(publicKey, MESSAGE_LENGTH);
+        cipher.encrypt(hash, EMPTY, 0, 0, message, DH_LENGTH);
+        mixHash(Arrays.copyOfRange(message, DH_LENGTH, MESSAGE_LENGTH));
+        return message;
+    }
+
+    /**
+     * Read the other party's handshake message
+     */
+    void readMessage(byte[] message, int offset, int length) throws GeneralSecurityException {
+        if (length != MESSAGE_LENGTH) {
+            throw new GeneralSecurityException(
+                    String.format("Handshake message length %d, expected %d", length, MESSAGE_LENGTH));
+        }
+        if (!initiator) {
+            mixKeyAndHash(psk);
+        }
+        byte[] publicKey = Arrays.copyOfRange(message, offset, offset + DH_LENGTH);
+        byte[] encoded = Arrays.copyOf(X25519_KEY_PREFIX, X25519_KEY_PREFIX.length + DH_LENGTH);
+        System.arraycopy(publicKey, 0, encoded, X25519_KEY_PREFIX.length, DH_LENGTH);
+        remoteEphemeral = KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(encoded));
+        mixEphemeral(publicKey);
+        if (initiator) {
+            mixKey(dh());
+        }
+
+        byte[] tag = Arrays.copyOfRange(message, offset + DH_LENGTH, offset + MESSAGE_LENGTH);
+        cipher.decrypt(hash, tag, 0, tag.length, EMPTY, 0);
+        mixHash(tag);
+    }
+
+    /**
+     * Derive the transport ciphers once both messages have been exchanged
+     *
+     * @return the cipher for sending followed by the cipher for receiving
+     */
+    NoiseCipherState[] split() throws GeneralSecurityException {
+        byte[][] keys = hkdf(chainingKey, EMPTY, 2);
+        NoiseCipherState initiatorToResponder = new NoiseCipherState(keys[0]);
+        NoiseCipherState responderToInitiator = new NoiseCipherState(keys[1]);
+        return initiator ? new NoiseCipherState[] { initiatorToResponder, responderToInitiator }
+                : new NoiseCipherState[] { responderToInitiator, initiatorToResponder };
+    }
+
+    private void mixEphemeral(byte[] publicKey) throws GeneralSecurityException {
+        mixHash(publicKey);
+        // In psk handshakes the ephemeral keys are mixed into the key as well
+        mixKey(publicKey);
+    }
+
+    private byte[] dh() throws GeneralSecurityException {
+        KeyAgreement keyAgreement = KeyAgreement.getInstance("X25519");
+        keyAgreement.init(localEphemeral.getPrivate());
+        keyAgreement.doPhase(remoteEphemeral, true);
+        return keyAgreement.generateSecret();
+    }
+
+    private void mixHash(byte[] data) throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(hash);
+        digest.update(data);
+        hash = digest.digest();
+    }
+
+    private void mixKey(byte[] inputKeyMaterial) throws GeneralSecurityException {
+        byte[][] output = hkdf(chainingKey, inputKeyMaterial, 2);
+        chainingKey = output[0];
+        cipher = new NoiseCipherState(output[1]);
+    }
+
+    private void mixKeyAndHash(byte[] inputKeyMaterial) throws GeneralSecurityException {
+        byte[][] output = hkdf(chainingKey, inputKeyMaterial, 3);
+        chainingKey = output[0];
+        mixHash(output[1]);
+        cipher = new NoiseCipherState(output[2]);
+    }
+
+    private static byte[][] hkdf(byte[] chainingKey, byte[] inputKeyMaterial, int numOutputs)
+            throws GeneralSecurityException {
+        byte[] tempKey = hmac(chainingKey, inputKeyMaterial);
+        byte[][] outputs = new byte[numOutputs][];
+        byte[] previous = EMPTY;
+        for (int i = 0; i < numOutputs; i++) {
+            byte[] input = Arrays.copyOf(previous, previous.length + 1);
+            input[previous.length] = (byte) (i + 1);
+            outputs[i] = hmac(tempKey, input);
+            previous = outputs[i];
+        }
+        return outputs;
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    private static byte[] sha256(byte[] data) throws GeneralSecurityException {
+        return MessageDigest.getInstance("SHA-256").digest(data);
+    }
+}
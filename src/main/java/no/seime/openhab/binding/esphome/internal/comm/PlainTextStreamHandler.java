@@ -12,17 +12,14 @@
  */
 package no.seime.openhab.binding.esphome.internal.comm;
 
-import static no.seime.openhab.binding.esphome.internal.comm.VarIntConverter.bytesToInt;
-
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.GeneratedMessageV3;
 
 import no.seime.openhab.binding.esphome.internal.PacketListener;
@@ -32,166 +29,206 @@ public class PlainTextStreamHandler implements StreamHandler {
     public static final int PREAMBLE = 0x00;
     public static final int ENCRYPTION_REQUIRED = 0x01;
     public static final int VAR_INT_MARKER = 0x80;
+
+    /**
+     * Default upper limit for the payload of a single frame
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 1024 * 1024;
+
+    /**
+     * Payloads larger than this are collected in an array of their exact size rather than in the reassembly buffer
+     */
+    public static final int SEGMENTED_FRAME_THRESHOLD = 8 * 1024;
+
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
     private final Logger logger = LoggerFactory.getLogger(PlainTextStreamHandler.class);
 
     private final PacketListener listener;
 
-    private ByteBuffer buffer = ByteBuffer.allocate(1024);
+    private final int maxFrameSize;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
 
-    private MessageTypeToClassConverter messageTypeToClassConverter = new MessageTypeToClassConverter();
+    // State of a large frame being received, its payload is collected and parsed once complete
+    private byte[] largeFrame;
+    private int largeFrameType;
+    private int largeFrameReceived;
 
     public PlainTextStreamHandler(PacketListener listener) {
+        this(listener, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    public PlainTextStreamHandler(PacketListener listener, int maxFrameSize) {
         this.listener = listener;
+        this.maxFrameSize = maxFrameSize;
     }
 
+    /**
+     * Decode every complete frame in the buffer, then compact once so that only a trailing partial frame is moved
+     */
     private void processBuffer() throws ProtocolException {
-        buffer.limit(buffer.position());
-        buffer.position(0);
-        if (buffer.remaining() > 2) {
-            byte[] headerData = readBytes(3);
-            headerReceived(headerData);
-        } else {
-            buffer.position(buffer.limit());
-            buffer.limit(buffer.capacity());
+        buffer.flip();
+        while (largeFrame == null && buffer.remaining() > 2) {
+            int frameStart = buffer.position();
+            if (!decodeFrame()) {
+                // Incomplete frame, wait for more data
+                buffer.position(frameStart);
+                break;
+            }
         }
+        buffer.compact();
     }
 
-    public void headerReceived(byte[] headerData) throws ProtocolException {
-        if (headerData[0] != PREAMBLE) {
-            if (headerData[0] == ENCRYPTION_REQUIRED) {
-                handleAndClose(new RequiresEncryptionAPIError("Connection requires encryption"));
-                return;
-            }
-
-            handleAndClose(new ProtocolAPIError(String.format("Invalid preamble %02x", headerData[0])));
-            return;
+    /**
+     * Decode a single frame from the buffer
+     *
+     * @return false if the buffer does not hold the complete frame, leaving the position undefined
+     */
+    private boolean decodeFrame() throws ProtocolException {
+        // Protocol errors are thrown to the selector loop, which closes the connection and notifies the listener
+        byte preamble = buffer.get();
+        if (preamble == ENCRYPTION_REQUIRED) {
+            throw new RequiresEncryptionAPIError("Connection requires encryption");
+        } else if (preamble != PREAMBLE) {
+            throw new ProtocolAPIError(String.format("Invalid preamble %02x", preamble));
         }
 
-        byte[] encodedProtoPacketLenghtBuffer;
-        byte[] encodedMessageTypeBuffer;
-
-        if ((headerData[1] & VAR_INT_MARKER) == VAR_INT_MARKER) {
-            // Length is longer than 1 byte
-            encodedProtoPacketLenghtBuffer = Arrays.copyOfRange(headerData, 1, 3);
-            encodedMessageTypeBuffer = new byte[0];
-        } else {
-            // This is the most common case with 99% of messages
-            // needing a single byte for length and type which means
-            // we avoid 2 calls to readexactly
-            encodedProtoPacketLenghtBuffer = Arrays.copyOfRange(headerData, 1, 2);
-            encodedMessageTypeBuffer = Arrays.copyOfRange(headerData, 2, 3);
+        // Length and type are varints read straight from the buffer, the common case being a single byte each. Both
+        // are non-negative, malformed varints are rejected by the converter
+        int protoPacketLength = VarIntConverter.readVarInt(buffer);
+        if (protoPacketLength == VarIntConverter.INCOMPLETE) {
+            return false;
         }
-
-        // If the message is long, we need to read the rest of the length
-        while ((encodedProtoPacketLenghtBuffer[encodedProtoPacketLenghtBuffer.length - 1]
-                & VAR_INT_MARKER) == VAR_INT_MARKER) {
-            byte[] additionalLength = readBytes(1);
-            if (additionalLength.length == 0) {
-                buffer.position(buffer.limit());
-                buffer.limit(buffer.capacity());
-                return;
-            }
-            encodedProtoPacketLenghtBuffer = concatArrays(encodedProtoPacketLenghtBuffer, additionalLength);
+        int messageType = VarIntConverter.readVarInt(buffer);
+        if (messageType == VarIntConverter.INCOMPLETE) {
+            return false;
         }
 
-        // If the message length was longer than 1 byte, we need to read the message type
-        while (encodedMessageTypeBuffer.length == 0
-                || (encodedMessageTypeBuffer[encodedMessageTypeBuffer.length - 1] & VAR_INT_MARKER) == VAR_INT_MARKER) {
-            byte[] additionalencodedMessageTypeBuffer = readBytes(1);
-            if (additionalencodedMessageTypeBuffer.length == 0) {
-                buffer.position(buffer.limit());
-                buffer.limit(buffer.capacity());
-                return;
-            }
-            encodedMessageTypeBuffer = concatArrays(encodedMessageTypeBuffer, additionalencodedMessageTypeBuffer);
+        if (protoPacketLength > maxFrameSize) {
+            throw new ProtocolAPIError(String.format("Frame of type %d with %d bytes exceeds limit %d", messageType,
+                    protoPacketLength, maxFrameSize));
         }
 
-        Integer protoPacketLength = bytesToInt(encodedProtoPacketLenghtBuffer);
-        Integer messageType = bytesToInt(encodedMessageTypeBuffer);
-
-        if (protoPacketLength == 0) {
-            decodeProtoMessage(messageType, new byte[0]);
-            buffer.compact();
-            // If we have more data, continue processing
-            processBuffer();
-
+        if (protoPacketLength > SEGMENTED_FRAME_THRESHOLD) {
+            // Large frame, copy the part of the payload we already have, the rest is copied straight from the reads.
+            // Allocated per frame rather than kept, so that a connection does not hold on to its largest frame
+            largeFrame = new byte[protoPacketLength];
+            largeFrameType = messageType;
+            largeFrameReceived = 0;
+            appendLargeFrame(buffer);
+            return true;
         } else if (buffer.remaining() >= protoPacketLength) {
             // We have enough data in the buffer to read the whole packet
-            byte[] packetData = readBytes(protoPacketLength);
-            decodeProtoMessage(messageType, packetData);
-            buffer.compact();
-            processBuffer();
+            int packetEnd = buffer.position() + protoPacketLength;
+            if (logger.isDebugEnabled()) {
+                int offset = buffer.arrayOffset() + buffer.position();
+                logPacket(messageType, Arrays.copyOfRange(buffer.array(), offset, offset + protoPacketLength));
+            }
+            // Parse directly from the receive buffer, no intermediate copy of the payload. The small stream wrapping
+            // the buffer is still created per frame, as protobuf has no way to point an existing one at new data
+            decodeProtoMessage(messageType, CodedInputStream.newInstance(buffer.array(),
+                    buffer.arrayOffset() + buffer.position(), protoPacketLength));
+            buffer.position(packetEnd);
+            return true;
         } else {
-            buffer.position(buffer.limit());
-            buffer.limit(buffer.capacity());
+            return false;
         }
     }
 
-    private byte[] readBytes(int numBytes) {
-        if (buffer.remaining() < numBytes) {
-            return new byte[0];
+    /**
+     * Copy up to the remaining number of payload bytes of the large frame from the source, and decode the frame when
+     * it is complete. The payload is copied once, the protobuf parser needs the whole message.
+     */
+    private void appendLargeFrame(ByteBuffer source) {
+        int length = Math.min(source.remaining(), largeFrame.length - largeFrameReceived);
+        source.get(largeFrame, largeFrameReceived, length);
+        largeFrameReceived += length;
+
+        if (largeFrameReceived == largeFrame.length) {
+            byte[] frame = largeFrame;
+            largeFrame = null;
+            if (logger.isDebugEnabled()) {
+                logPacket(largeFrameType, frame);
+            }
+            decodeProtoMessage(largeFrameType, CodedInputStream.newInstance(frame));
         }
-        byte[] data = new byte[numBytes];
-        buffer.get(data);
-        return data;
     }
 
-    private void decodeProtoMessage(int messageType, byte[] bytes) {
-        logger.debug("Received packet of type {} with data {}", messageType, bytes);
+    private void logPacket(int messageType, byte[] data) {
+        logger.debug("Received packet of type {} with data {}", messageType, data);
+    }
 
+    private void decodeProtoMessage(int messageType, CodedInputStream input) {
         try {
-            Method parseMethod = messageTypeToClassConverter.getMethod(messageType);
-            if (parseMethod != null) {
-                GeneratedMessageV3 invoke = (GeneratedMessageV3) parseMethod.invoke(null, bytes);
-                if (invoke != null) {
-                    listener.onPacket(invoke);
-                } else {
-                    logger.warn("Received null packet of type {}", parseMethod);
-                }
+            GeneratedMessageV3 message = MessageCodec.parse(messageType, input);
+            if (message != null) {
+                listener.onPacket(messageType, message);
+            } else {
+                logger.debug("Ignoring packet of unknown type {}", messageType);
             }
-        } catch (ProtocolAPIError | IllegalAccessException | InvocationTargetException | IOException e) {
+        } catch (ProtocolAPIError | IOException e) {
             logger.warn("Error parsing packet", e);
             listener.onParseError();
         }
     }
 
-    private byte[] concatArrays(byte[] length, byte[] additionalLength) {
-        byte[] result = new byte[length.length + additionalLength.length];
-        System.arraycopy(length, PREAMBLE, result, PREAMBLE, length.length);
-        System.arraycopy(additionalLength, PREAMBLE, result, length.length, additionalLength.length);
-        return result;
-    }
-
-    private void handleAndClose(ProtocolException connectionRequiresEncryption) throws ProtocolException {
-        // close socket
-        listener.onParseError();
-        throw connectionRequiresEncryption;
-    }
-
     public void processReceivedData(ByteBuffer buffer) throws ProtocolException, IOException {
-        // Copy new data into buffer
-        byte[] newData = new byte[buffer.position()];
         buffer.flip();
-        buffer.get(newData);
-        this.buffer.put(newData, 0, newData.length);
+        while (buffer.hasRemaining()) {
+            if (largeFrame != null) {
+                appendLargeFrame(buffer);
+                continue;
+            }
+
+            if (!this.buffer.hasRemaining()) {
+                // A frame larger than the reassembly buffer, but below the segmentation threshold
+                growBuffer();
+            }
+
+            // Append as much new data as fits to whatever partial frame is already buffered
+            int length = Math.min(buffer.remaining(), this.buffer.remaining());
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + length);
+            this.buffer.put(buffer);
+            buffer.limit(limit);
 
-        processBuffer();
+            processBuffer();
+        }
+
+        if (this.buffer.position() == 0 && this.buffer.capacity() > INITIAL_BUFFER_SIZE) {
+            // Release memory held after a large frame
+            this.buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        }
+    }
+
+    private void growBuffer() {
+        int capacity = Math.min(this.buffer.capacity() * 2, SEGMENTED_FRAME_THRESHOLD + MAX_HEADER_SIZE);
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        this.buffer.flip();
+        grown.put(this.buffer);
+        this.buffer = grown;
     }
 
     public byte[] encodeFrame(GeneratedMessageV3 message) {
-        byte[] protoBytes = message.toByteArray();
-        byte[] idVarUint = VarIntConverter
-                .intToBytes(message.getDescriptorForType().getOptions().getExtension(io.esphome.api.ApiOptions.id));
-        byte[] protoBytesLengthVarUint = VarIntConverter.intToBytes(protoBytes.length);
-
-        byte[] frame = new byte[1 + idVarUint.length + protoBytesLengthVarUint.length + protoBytes.length];
-        System.arraycopy(protoBytesLengthVarUint, 0, frame, 1, protoBytesLengthVarUint.length);
-        System.arraycopy(idVarUint, 0, frame, protoBytesLengthVarUint.length + 1, idVarUint.length);
-        System.arraycopy(protoBytes, 0, frame, idVarUint.length + protoBytesLengthVarUint.length + 1,
-                protoBytes.length);
+        ByteBuffer header = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        ByteBuffer payload = encodeFrame(message, header);
+        header.flip();
+        byte[] frame = new byte[header.remaining() + payload.remaining()];
+        header.get(frame, 0, header.remaining());
+        payload.get(frame, header.limit(), payload.remaining());
         return frame;
     }
 
+    @Override
+    public ByteBuffer encodeFrame(GeneratedMessageV3 message, ByteBuffer header) {
+        byte[] protoBytes = message.toByteArray();
+        header.put((byte) PREAMBLE);
+        VarIntConverter.writeVarInt(header, protoBytes.length);
+        VarIntConverter.writeVarInt(header, MessageCodec.messageId(message));
+        return ByteBuffer.wrap(protoBytes);
+    }
+
     @Override
     public void endOfStream() {
         listener.onEndOfStream();
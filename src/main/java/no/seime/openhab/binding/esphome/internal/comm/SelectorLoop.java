@@ -0,0 +1,367 @@
+package no.seime.openhab.binding.esphome.internal.comm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single selector with its own thread, serving the channels that {@link ConnectionSelector} assigns to it
+ *
+ * @author Arne Seime - Initial contribution
+ */
+class SelectorLoop {
+
+    private static final int MIN_READ_SIZE = 128;
+    private static final int INITIAL_READ_SIZE = 1024;
+    private static final int MAX_READ_SIZE = 64 * 1024;
+    private static final int MAX_READS_PER_WAKEUP = 16;
+
+    private final Logger logger = LoggerFactory.getLogger(SelectorLoop.class);
+
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(INITIAL_READ_SIZE);
+
+    private final String name;
+
+    private final Selector selector;
+
+    private final AtomicInteger channelCount = new AtomicInteger();
+
+    private volatile boolean keepRunning = true;
+
+    private boolean selectorOpen;
+
+    private final Queue<ChannelContext> connectRequests = new ConcurrentLinkedQueue<>();
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // Only accessed by the selector thread
+    private final List<ChannelContext> connecting = new ArrayList<>();
+
+    SelectorLoop(String name) throws IOException {
+        this.name = name;
+        selector = Selector.open();
+        selectorOpen = true;
+    }
+
+    void start() {
+
+        Thread selectorThread = new Thread(() -> {
+            logger.debug("Starting selector thread {}", name);
+            while (keepRunning) {
+                try {
+                    selector.select(selectTimeout());
+                    runTasks();
+                    startConnects();
+                    // token representing the registration of a SelectableChannel with a Selector
+                    Set<SelectionKey> keys = selector.selectedKeys();
+                    logger.trace("Selected keys: {}", keys.size());
+                    Iterator<SelectionKey> keyIterator = keys.iterator();
+                    while (keyIterator.hasNext()) {
+                        SelectionKey readyKey = keyIterator.next();
+                        keyIterator.remove();
+                        processKey(readyKey);
+                    }
+                    expireConnects();
+                } catch (ClosedSelectorException e) {
+                    logger.debug("Selector closed");
+                    keepRunning = false;
+                } catch (Exception e) {
+                    // Failures of a single connection are handled by processKey, keep serving the others
+                    logger.warn("Error while selecting", e);
+                }
+            }
+            logger.debug(
+                    "Selector thread stopped. This should only happen on bundle stop, not during regular operation. See previous log statements for more information.");
+        });
+        selectorThread.setName(name);
+        selectorThread.start();
+    }
+
+    private void processKey(SelectionKey readyKey) {
+        ChannelContext context = (ChannelContext) readyKey.attachment();
+        StreamHandler streamHandler = context.streamHandler;
+        logger.trace("Processing key {}", readyKey);
+        try {
+            if (readyKey.isValid() && readyKey.isConnectable()) {
+                finishConnect(readyKey, context);
+                return;
+            }
+            if (readyKey.isValid() && readyKey.isWritable()) {
+                context.connection.writeQueued(readyKey);
+            }
+            if (readyKey.isValid() && readyKey.isReadable()) {
+                readAvailable((SocketChannel) readyKey.channel(), context);
+            }
+        } catch (CancelledKeyException e) {
+            logger.trace("Key cancelled while processing, connection closed");
+        } catch (IOException e) {
+            logger.debug("Socket exception", e);
+            streamHandler.endOfStream();
+        } catch (RuntimeException e) {
+            // Close only this connection, the loop serves others
+            logger.warn("Error processing connection, closing it", e);
+            try {
+                readyKey.channel().close();
+            } catch (IOException closeException) {
+                logger.debug("Error closing channel", closeException);
+            }
+            streamHandler.onParseError(e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.warn("Error running task on selector thread {}", name, e);
+            }
+        }
+    }
+
+    private void startConnects() {
+        ChannelContext context;
+        while ((context = connectRequests.poll()) != null) {
+            SelectionKey key = context.key;
+            try {
+                context.connectDeadline = System.nanoTime() + context.connectTimeoutNanos;
+                if (((SocketChannel) key.channel()).connect(context.address)) {
+                    connected(context);
+                } else {
+                    key.interestOps(SelectionKey.OP_CONNECT);
+                    connecting.add(context);
+                }
+            } catch (IOException | IllegalArgumentException | CancelledKeyException e) {
+                // Includes unresolved addresses and connections closed before the attempt was started
+                connectFailed(context, e);
+            }
+        }
+    }
+
+    private void finishConnect(SelectionKey key, ChannelContext context) {
+        try {
+            if (((SocketChannel) key.channel()).finishConnect()) {
+                connecting.remove(context);
+                connected(context);
+            }
+        } catch (IOException | CancelledKeyException e) {
+            connecting.remove(context);
+            connectFailed(context, e);
+        }
+    }
+
+    private void connected(ChannelContext context) {
+        context.connection.onConnected(context.key);
+    }
+
+    private void connectFailed(ChannelContext context, Exception cause) {
+        logger.debug("Connect attempt failed", cause);
+        context.connection.onConnectFailed(cause);
+    }
+
+    /**
+     * Wake up no later than the earliest connect deadline
+     */
+    private long selectTimeout() {
+        long timeout = 1000;
+        long now = System.nanoTime();
+        for (ChannelContext context : connecting) {
+            timeout = Math.min(timeout, TimeUnit.NANOSECONDS.toMillis(context.connectDeadline - now) + 1);
+        }
+        return Math.max(1, timeout);
+    }
+
+    /**
+     * Fail pending connect attempts that have passed their deadline, and forget those closed by the owner
+     */
+    private void expireConnects() {
+        if (connecting.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        Iterator<ChannelContext> iterator = connecting.iterator();
+        while (iterator.hasNext()) {
+            ChannelContext context = iterator.next();
+            if (!context.key.isValid()) {
+                iterator.remove();
+            } else if (now - context.connectDeadline >= 0) {
+                iterator.remove();
+                connectFailed(context, new SocketTimeoutException(String.format("Connect timed out after %d ms",
+                        TimeUnit.NANOSECONDS.toMillis(context.connectTimeoutNanos))));
+            }
+        }
+    }
+
+    private void readAvailable(SocketChannel channel, ChannelContext context) throws IOException {
+        StreamHandler streamHandler = context.streamHandler;
+        int burst = 0;
+        // Drain the socket, bounded to avoid a chatty device starving the others. Anything left will be
+        // picked up on the next select
+        for (int i = 0; i < MAX_READS_PER_WAKEUP; i++) {
+            ByteBuffer buffer = readBuffer(context.readSize);
+            int read = channel.read(buffer);
+            if (read == -1) {
+                streamHandler.endOfStream();
+                return;
+            } else if (read == 0) {
+                break;
+            }
+            if (burst == 0) {
+                context.connection.onReceive(System.nanoTime());
+            }
+            burst += read;
+            if (!processReceivedData(streamHandler, buffer, channel) || !channel.isOpen()) {
+                // Parse error, or the listener closed the connection while handling the data
+                return;
+            }
+            if (!context.handshakeComplete && streamHandler.isHandshakeComplete()) {
+                context.handshakeComplete = true;
+                context.connection.onHandshakeComplete(context.key);
+            }
+            if ((context.key.interestOps() & SelectionKey.OP_READ) == 0) {
+                // Reading paused by the listener, until it has caught up
+                break;
+            }
+        }
+        context.recordBurst(burst);
+    }
+
+    /**
+     * Get the shared read buffer, cleared and limited to the given size. The buffer is only ever used by the selector
+     * thread and grows to the largest read size requested by any connection
+     */
+    private ByteBuffer readBuffer(int size) {
+        if (readBuffer.capacity() < size) {
+            readBuffer = ByteBuffer.allocateDirect(size);
+        }
+        readBuffer.clear();
+        readBuffer.limit(size);
+        return readBuffer;
+    }
+
+    private boolean processReceivedData(StreamHandler streamHandler, ByteBuffer buffer, SocketChannel channel)
+            throws IOException {
+        try {
+            logger.trace("Received data");
+            streamHandler.processReceivedData(buffer);
+            return true;
+        } catch (Exception e) {
+            channel.close();
+            streamHandler.onParseError(e);
+            return false;
+        }
+    }
+
+    void stop() {
+        if (selectorOpen) {
+            keepRunning = false;
+            selector.wakeup();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.debug("Error closing selector", e);
+            }
+            selectorOpen = false;
+        }
+    }
+
+    /**
+     * Number of channels currently registered, used to balance new channels across loops
+     */
+    int getChannelCount() {
+        return channelCount.get();
+    }
+
+    SelectionKey register(SocketChannel socketChannel, ESPHomeConnection connection, int interestOps)
+            throws IOException {
+        ChannelContext context = new ChannelContext(connection);
+        SelectionKey key = socketChannel.register(selector, interestOps, context);
+        context.key = key;
+        channelCount.incrementAndGet();
+        selector.wakeup();
+        return key;
+    }
+
+    /**
+     * Start connecting a registered, unconnected channel. The connect itself is issued by the selector thread
+     */
+    void connect(SelectionKey key, InetSocketAddress address, int connectTimeoutMillis) {
+        ChannelContext context = (ChannelContext) key.attachment();
+        context.address = address;
+        context.connectTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(connectTimeoutMillis);
+        connectRequests.offer(context);
+        selector.wakeup();
+    }
+
+    /**
+     * Run the task on the selector thread. Tasks handed over after the loop has stopped are run by the caller, as no
+     * connection is served anymore
+     */
+    void execute(Runnable task) {
+        if (!keepRunning) {
+            task.run();
+            return;
+        }
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    void unregister(SocketChannel socketChannel) {
+        channelCount.decrementAndGet();
+
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            logger.warn("Error while closing channel", e);
+        }
+    }
+
+    /**
+     * Per connection state kept by the selector thread. The read size follows the size of the bursts observed on the
+     * connection so that a typical burst is drained with a single read
+     */
+    private static class ChannelContext {
+        private final ESPHomeConnection connection;
+        private final StreamHandler streamHandler;
+        private int readSize = INITIAL_READ_SIZE;
+        private SelectionKey key;
+        private boolean handshakeComplete;
+
+        // Connect attempt state
+        private InetSocketAddress address;
+        private long connectTimeoutNanos;
+        private long connectDeadline;
+
+        private ChannelContext(ESPHomeConnection connection) {
+            this.connection = connection;
+            this.streamHandler = connection.getStreamHandler();
+            this.handshakeComplete = streamHandler.isHandshakeComplete();
+        }
+
+        private void recordBurst(int burst) {
+            if (burst >= readSize) {
+                readSize = Math.min(MAX_READ_SIZE, readSize * 2);
+            } else if (burst < readSize / 4) {
+                readSize = Math.max(MIN_READ_SIZE, readSize / 2);
+            }
+        }
+    }
+}
@@ -6,9 +6,38 @@ import java.nio.ByteBuffer;
 import com.google.protobuf.GeneratedMessageV3;
 
 public interface StreamHandler {
+
+    /**
+     * Upper bound of the frame header written by {@link #encodeFrame(GeneratedMessageV3, ByteBuffer)}
+     */
+    int MAX_HEADER_SIZE = 11;
+
     void processReceivedData(ByteBuffer buffer) throws ProtocolException, IOException;
 
-    byte[] encodeFrame(GeneratedMessageV3 message);
+    byte[] encodeFrame(GeneratedMessageV3 message) throws ProtocolException;
+
+    /**
+     * Encode a message as a frame split in two parts. The frame header is written to the given buffer at its current
+     * position, and the rest of the frame is returned as a separate buffer so that both can be written with a single
+     * gathering write.
+     */
+    ByteBuffer encodeFrame(GeneratedMessageV3 message, ByteBuffer header) throws ProtocolException;
+
+    /**
+     * Called once the socket is connected, before any message is written
+     *
+     * @return data to write ahead of the first message, or null if there is none
+     */
+    default ByteBuffer onConnected() throws ProtocolException {
+        return null;
+    }
+
+    /**
+     * Whether messages can be encoded, ie any transport handshake started by {@link #onConnected()} has completed
+     */
+    default boolean isHandshakeComplete() {
+        return true;
+    }
 
     void endOfStream();
 
@@ -12,6 +12,8 @@
  */
 package no.seime.openhab.binding.esphome.internal.comm;
 
+import java.nio.ByteBuffer;
+
 /**
  * Helper utility for converting integers to and from varints
  *
@@ -19,6 +21,14 @@ package no.seime.openhab.binding.esphome.internal.comm;
  */
 public class VarIntConverter {
 
+    /**
+     * Returned by {@link #readVarInt(ByteBuffer)} when the buffer ends before the varint does. Never a valid value, as
+     * varints that do not fit a non-negative int are rejected
+     */
+    public static final int INCOMPLETE = -1;
+
+    private static final int MAX_VARINT_BYTES = 5;
+
     /**
      * Convert an integer to a varint byte array
      */
@@ -61,6 +71,41 @@ public class VarIntConverter {
         return null;
     }
 
+    /**
+     * Read a non-negative varint directly from the buffer, advancing its position past it. Returns
+     * {@link #INCOMPLETE} if the buffer does not yet hold the whole varint, in which case the position is undefined.
+     *
+     * @throws ProtocolAPIError if the varint is longer than 5 bytes or its value does not fit a non-negative int
+     */
+    public static int readVarInt(ByteBuffer buffer) throws ProtocolAPIError {
+        int result = 0;
+        for (int i = 0; i < MAX_VARINT_BYTES; i++) {
+            if (!buffer.hasRemaining()) {
+                return INCOMPLETE;
+            }
+            byte val = buffer.get();
+            result |= (val & 0x7F) << (7 * i);
+            if ((val & 0x80) == 0) {
+                if (result < 0) {
+                    throw new ProtocolAPIError("Malformed varint, value exceeds " + Integer.MAX_VALUE);
+                }
+                return result;
+            }
+        }
+        throw new ProtocolAPIError("Malformed varint, longer than " + MAX_VARINT_BYTES + " bytes");
+    }
+
+    /**
+     * Write a varint directly into the buffer, which must have room for up to 5 bytes
+     */
+    public static void writeVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
     private static byte[] trimArray(byte[] array, int length) {
         byte[] trimmedArray = new byte[length];
         System.arraycopy(array, 0, trimmedArray, 0, length);
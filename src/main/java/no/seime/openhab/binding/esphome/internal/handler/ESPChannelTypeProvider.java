@@ -12,33 +12,179 @@
  */
 package no.seime.openhab.binding.esphome.internal.handler;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.openhab.core.common.registry.RegistryChangeListener;
 import org.openhab.core.storage.StorageService;
+import org.openhab.core.thing.Channel;
+import org.openhab.core.thing.Thing;
+import org.openhab.core.thing.ThingRegistry;
 import org.openhab.core.thing.ThingUID;
 import org.openhab.core.thing.binding.AbstractStorageBasedTypeProvider;
 import org.openhab.core.thing.type.ChannelType;
 import org.openhab.core.thing.type.ChannelTypeProvider;
+import org.openhab.core.thing.type.ChannelTypeUID;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import no.seime.openhab.binding.esphome.internal.BindingConstants;
 
 /**
- * Channel Type Provider that does a callback the SensiboSkyHandler that initiated it.
+ * Provides the channel types built from the entities of ESPHome devices, stored so that they are available before the
+ * devices are connected.
+ * <p>
+ * Channel types are committed per thing in a single batch after each device interrogation, writing only those that
+ * changed to storage. Channel types are identified by their content and shared by things. Which things use a channel
+ * type is indexed per thing, both from the channels in the thing registry, so that the channel types of disabled and
+ * not yet initialized things are kept, and from the channel types committed by each thing, whose channels may not
+ * have reached the registry yet. A channel type is removed once no thing uses it anymore. Stored channel types no
+ * thing in the registry uses on activation, such as those of removed things, are removed then.
  *
  * @author Arne Seime - Initial contribution
  */
 @Component(service = { ESPChannelTypeProvider.class, ChannelTypeProvider.class })
 @NonNullByDefault
 public class ESPChannelTypeProvider extends AbstractStorageBasedTypeProvider {
+
+    private final Logger logger = LoggerFactory.getLogger(ESPChannelTypeProvider.class);
+
+    private final ThingRegistry thingRegistry;
+    private final RegistryChangeListener<Thing> thingListener = new ThingListener();
+
+    // Channel types used by the channels of each thing in the registry, and committed by each thing
+    private final Map<ThingUID, Set<ChannelTypeUID>> registryChannelTypes = new HashMap<>();
+    private final Map<ThingUID, Set<ChannelTypeUID>> committedChannelTypes = new HashMap<>();
+    // Number of entries in the maps above using each channel type
+    private final Map<ChannelTypeUID, Integer> usage = new HashMap<>();
+
     @Activate
-    public ESPChannelTypeProvider(@Reference StorageService storageService) {
+    public ESPChannelTypeProvider(@Reference StorageService storageService, @Reference ThingRegistry thingRegistry) {
         super(storageService);
+        this.thingRegistry = thingRegistry;
+        synchronized (this) {
+            // Listening first, so that no thing added meanwhile is missed
+            thingRegistry.addRegistryChangeListener(thingListener);
+            thingRegistry.getAll().forEach(this::indexThing);
+            getChannelTypes(null).stream().map(ChannelType::getUID)
+                    .filter(channelTypeUID -> !usage.containsKey(channelTypeUID)).toList()
+                    .forEach(this::removeUnused);
+        }
+    }
+
+    @Deactivate
+    public void deactivate() {
+        thingRegistry.removeRegistryChangeListener(thingListener);
+    }
+
+    /**
+     * Store the channel types of a thing, and remove the stored channel types no thing uses anymore in the same step,
+     * so that channel types committed by one thing are never removed by another thing pruning concurrently. Channel
+     * types equal to the stored ones are not written again.
+     */
+    public synchronized void putChannelTypes(ThingUID uid, Collection<ChannelType> channelTypes) {
+        int written = 0;
+        for (ChannelType channelType : channelTypes) {
+            ChannelType stored = getChannelType(channelType.getUID(), null);
+            if (stored == null || !sameChannelType(stored, channelType)) {
+                putChannelType(channelType);
+                written++;
+            }
+        }
+        logger.debug("Committed {} channel types for thing {}, {} of them changed", channelTypes.size(), uid,
+                written);
+        useChannelTypes(uid, channelTypes.stream().map(ChannelType::getUID).collect(Collectors.toSet()));
+    }
+
+    /**
+     * Record the channel types a thing uses, and remove the stored channel types no thing uses anymore
+     *
+     * @param uid thing whose channel types are given
+     * @param used channel types of that thing, empty if it is being removed
+     */
+    public synchronized void useChannelTypes(ThingUID uid, Collection<ChannelTypeUID> used) {
+        replaceUsage(committedChannelTypes, uid, new HashSet<>(used)).forEach(this::removeUnused);
     }
 
     public void removeChannelTypesForThing(ThingUID uid) {
+        useChannelTypes(uid, Set.of());
+    }
+
+    private synchronized void indexThing(Thing thing) {
+        if (BindingConstants.BINDING_ID.equals(thing.getThingTypeUID().getBindingId())) {
+            replaceUsage(registryChannelTypes, thing.getUID(), thing.getChannels().stream()
+                    .map(Channel::getChannelTypeUID).filter(Objects::nonNull).collect(Collectors.toSet()))
+                    .forEach(this::removeUnused);
+        }
+    }
+
+    private synchronized void unindexThing(Thing thing) {
+        // Also what the thing committed, in case it was removed without its handler being told
+        replaceUsage(committedChannelTypes, thing.getUID(), Set.of()).forEach(this::removeUnused);
+        replaceUsage(registryChannelTypes, thing.getUID(), Set.of()).forEach(this::removeUnused);
+    }
+
+    private void removeUnused(ChannelTypeUID channelTypeUID) {
+        if (getChannelType(channelTypeUID, null) != null) {
+            logger.debug("Removing channel type {}, no longer used", channelTypeUID);
+            removeChannelType(channelTypeUID);
+        }
+    }
+
+    /**
+     * Replace the channel types used by a thing in one of the indexes
+     *
+     * @return channel types the thing used before that nothing uses anymore
+     */
+    private Set<ChannelTypeUID> replaceUsage(Map<ThingUID, Set<ChannelTypeUID>> index, ThingUID uid,
+            Set<ChannelTypeUID> used) {
+        Set<ChannelTypeUID> previous = used.isEmpty() ? index.remove(uid) : index.put(uid, used);
+        // Counted up first, so that channel types the thing keeps using are not seen as unused in between
+        used.forEach(channelTypeUID -> usage.merge(channelTypeUID, 1, Integer::sum));
+        Set<ChannelTypeUID> unused = new HashSet<>();
+        if (previous != null) {
+            for (ChannelTypeUID channelTypeUID : previous) {
+                if (usage.computeIfPresent(channelTypeUID, (c, count) -> count > 1 ? count - 1 : null) == null) {
+                    unused.add(channelTypeUID);
+                }
+            }
+        }
+        return unused;
+    }
+
+    private class ThingListener implements RegistryChangeListener<Thing> {
+        @Override
+        public void added(Thing thing) {
+            indexThing(thing);
+        }
+
+        @Override
+        public void removed(Thing thing) {
+            unindexThing(thing);
+        }
+
+        @Override
+        public void updated(Thing oldThing, Thing thing) {
+            indexThing(thing);
+        }
+    }
 
-        String thingUid = uid.getId();
-        getChannelTypes(null).stream().map(ChannelType::getUID).filter(c -> c.getAsString().endsWith(thingUid))
-                .forEach(this::removeChannelType);
+    private static boolean sameChannelType(ChannelType a, ChannelType b) {
+        return Objects.equals(a.getLabel(), b.getLabel()) && Objects.equals(a.getDescription(), b.getDescription())
+                && Objects.equals(a.getItemType(), b.getItemType()) && a.getKind() == b.getKind()
+                && a.getTags().equals(b.getTags()) && Objects.equals(a.getCategory(), b.getCategory())
+                && a.isAdvanced() == b.isAdvanced() && a.getAutoUpdatePolicy() == b.getAutoUpdatePolicy()
+                && Objects.equals(a.getState(), b.getState())
+                && Objects.equals(a.getConfigDescriptionURI(), b.getConfigDescriptionURI());
     }
 }
@@ -14,14 +14,18 @@ package no.seime.openhab.binding.esphome.internal.handler;
 
 import java.math.BigDecimal;
 import java.net.InetSocketAddress;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.jdt.annotation.NonNullByDefault;
@@ -32,7 +36,9 @@ import org.openhab.core.thing.Thing;
 import org.openhab.core.thing.ThingStatus;
 import org.openhab.core.thing.ThingStatusDetail;
 import org.openhab.core.thing.binding.BaseThingHandler;
+import org.openhab.core.thing.binding.builder.ThingBuilder;
 import org.openhab.core.thing.type.ChannelType;
+import org.openhab.core.thing.type.ChannelTypeUID;
 import org.openhab.core.types.Command;
 import org.openhab.core.types.RefreshType;
 import org.openhab.core.types.State;
@@ -78,9 +84,12 @@ import no.seime.openhab.binding.esphome.internal.ESPHomeConfiguration;
 import no.seime.openhab.binding.esphome.internal.PacketListener;
 import no.seime.openhab.binding.esphome.internal.comm.ConnectionSelector;
 import no.seime.openhab.binding.esphome.internal.comm.ESPHomeConnection;
+import no.seime.openhab.binding.esphome.internal.comm.EncryptedStreamHandler;
+import no.seime.openhab.binding.esphome.internal.comm.MessageCodec;
 import no.seime.openhab.binding.esphome.internal.comm.PlainTextStreamHandler;
 import no.seime.openhab.binding.esphome.internal.comm.ProtocolAPIError;
 import no.seime.openhab.binding.esphome.internal.comm.ProtocolException;
+import no.seime.openhab.binding.esphome.internal.comm.StreamHandler;
 import no.seime.openhab.binding.esphome.internal.message.AbstractMessageHandler;
 import no.seime.openhab.binding.esphome.internal.message.BinarySensorMessageHandler;
 import no.seime.openhab.binding.esphome.internal.message.ButtonMessageHandler;
@@ -91,6 +100,9 @@ import no.seime.openhab.binding.esphome.internal.message.SelectMessageHandler;
 import no.seime.openhab.binding.esphome.internal.message.SensorMessageHandler;
 import no.seime.openhab.binding.esphome.internal.message.SwitchMessageHandler;
 import no.seime.openhab.binding.esphome.internal.message.TextSensorMessageHandler;
+import no.seime.openhab.binding.esphome.internal.util.CommandDebouncer;
+import no.seime.openhab.binding.esphome.internal.util.LivenessMonitor;
+import no.seime.openhab.binding.esphome.internal.util.ReconnectCoordinator;
 
 /**
  * The {@link ESPHomeHandler} is responsible for handling commands, which are
@@ -101,75 +113,159 @@ import no.seime.openhab.binding.esphome.internal.message.TextSensorMessageHandle
 @NonNullByDefault
 public class ESPHomeHandler extends BaseThingHandler implements PacketListener {
 
-    public static final int CONNECT_TIMEOUT = 20;
+    // Devices interrogated within this time are reconnected before others
+    private static final Duration RECENTLY_HEALTHY = Duration.ofMinutes(10);
+    private static final int QUEUE_PROPERTIES_DELAY_SECONDS = 10;
+    // Time to write the disconnect request on dispose before the connection is closed anyway
+    private static final long DISCONNECT_TIMEOUT_MILLIS = 1000;
+    public static final String PROPERTY_CONFLATED_MESSAGES = "conflated_messages";
+    public static final String PROPERTY_OVER_CAPACITY_MESSAGES = "over_capacity_messages";
     private static final int API_VERSION_MAJOR = 1;
     private static final int API_VERSION_MINOR = 7;
+    // Part of the firmware key, to be increased when the channels built for the same entities change
+    private static final int CHANNEL_LAYOUT_VERSION = 2;
 
     private final Logger logger = LoggerFactory.getLogger(ESPHomeHandler.class);
     private final ConnectionSelector connectionSelector;
+    // Serial executor for everything received from the device and for setting up and tearing down connections,
+    // keeping the selector thread free for I/O
+    private final Executor packetExecutor;
+    private final StateConflator stateConflator;
+    private final CommandDebouncer commandDebouncer;
+    private final AtomicBoolean queuePropertiesScheduled = new AtomicBoolean();
+    private volatile InboundMessageQueue inboundQueue = new InboundMessageQueue(
+            ESPHomeConfiguration.DEFAULT_INBOUND_QUEUE_SIZE, this::setReading);
     private final ESPChannelTypeProvider dynamicChannelTypeProvider;
     private @Nullable ESPHomeConfiguration config;
-    private @Nullable ESPHomeConnection connection;
+    private volatile @Nullable ESPHomeConnection connection;
     @Nullable
-    private ScheduledFuture<?> pingWatchdogFuture;
-    private Instant lastPong = Instant.now();
-    @Nullable
-    private ScheduledFuture<?> reconnectFuture;
+    private LivenessMonitor.Watch livenessWatch;
+    private final ReconnectCoordinator reconnectCoordinator;
+    private final LivenessMonitor livenessMonitor;
+    // Failed connection attempts since the device was last interrogated, and when that was
+    private volatile int reconnectAttempts;
+    private volatile @Nullable Instant lastInterrogated;
     private final Map<String, AbstractMessageHandler<? extends GeneratedMessageV3, ? extends GeneratedMessageV3>> commandTypeToHandlerMap = new HashMap<>();
-    private final Map<Class<? extends GeneratedMessageV3>, AbstractMessageHandler<? extends GeneratedMessageV3, ? extends GeneratedMessageV3>> classToHandlerMap = new HashMap<>();
-    private ConnectionState connectionState = ConnectionState.UNINITIALIZED;
+    // Message handling while connected, indexed by wire id
+    @SuppressWarnings("unchecked")
+    private final MessageConsumer<GeneratedMessageV3>[] connectedRoutes = new MessageConsumer[MessageCodec.MAX_MESSAGE_ID + 1];
+    private volatile ConnectionState connectionState = ConnectionState.UNINITIALIZED;
 
     private final List<Channel> dynamicChannels = new ArrayList<>();
+    // Channel types built during interrogation, committed to the provider in one batch when it is complete
+    private final Map<ChannelTypeUID, ChannelType> dynamicChannelTypes = new LinkedHashMap<>();
 
-    private boolean disposed = false;
+    private volatile boolean disposed = false;
     private boolean interrogated;
-
-    public ESPHomeHandler(Thing thing, ConnectionSelector connectionSelector,
-            ESPChannelTypeProvider dynamicChannelTypeProvider) {
+    // Identifies the firmware the channels were built for, they are reused on reconnect while it is unchanged
+    private @Nullable String interrogatedFirmware;
+    // Device properties received during interrogation, applied together with the channels
+    private @Nullable Map<String, String> deviceProperties;
+    // Requests of the handshake sent up front on connect, see ESPHomeConfiguration.pipelineHandshake
+    private boolean pipelined;
+    // Entities listed along with the device info, as the device has not been interrogated
+    private boolean entitiesRequested;
+    // States received before the channels were indexed, the subscription is repeated once they are
+    private boolean statesBeforeInterrogation;
+
+    public ESPHomeHandler(Thing thing, ConnectionSelector connectionSelector, Executor packetExecutor,
+            CommandDebouncer commandDebouncer, ReconnectCoordinator reconnectCoordinator,
+            LivenessMonitor livenessMonitor, ESPChannelTypeProvider dynamicChannelTypeProvider) {
         super(thing);
         this.connectionSelector = connectionSelector;
+        this.packetExecutor = packetExecutor;
+        this.stateConflator = new StateConflator(scheduler, packetExecutor, super::updateState);
+        this.commandDebouncer = commandDebouncer;
+        this.reconnectCoordinator = reconnectCoordinator;
+        this.livenessMonitor = livenessMonitor;
         this.dynamicChannelTypeProvider = dynamicChannelTypeProvider;
 
         // Register message handlers for each type of message pairs
-        registerMessageHandler("Select", new SelectMessageHandler(this), ListEntitiesSelectResponse.class,
+        registerMessageHandler(new SelectMessageHandler(this), ListEntitiesSelectResponse.class,
                 SelectStateResponse.class);
-        registerMessageHandler("Sensor", new SensorMessageHandler(this), ListEntitiesSensorResponse.class,
+        registerMessageHandler(new SensorMessageHandler(this), ListEntitiesSensorResponse.class,
                 SensorStateResponse.class);
-        registerMessageHandler("BinarySensor", new BinarySensorMessageHandler(this),
-                ListEntitiesBinarySensorResponse.class, BinarySensorStateResponse.class);
-        registerMessageHandler("TextSensor", new TextSensorMessageHandler(this), ListEntitiesTextSensorResponse.class,
+        registerMessageHandler(new BinarySensorMessageHandler(this), ListEntitiesBinarySensorResponse.class,
+                BinarySensorStateResponse.class);
+        registerMessageHandler(new TextSensorMessageHandler(this), ListEntitiesTextSensorResponse.class,
                 TextSensorStateResponse.class);
-        registerMessageHandler("Switch", new SwitchMessageHandler(this), ListEntitiesSwitchResponse.class,
+        registerMessageHandler(new SwitchMessageHandler(this), ListEntitiesSwitchResponse.class,
                 SwitchStateResponse.class);
-        registerMessageHandler("Climate", new ClimateMessageHandler(this), ListEntitiesClimateResponse.class,
+        registerMessageHandler(new ClimateMessageHandler(this), ListEntitiesClimateResponse.class,
                 ClimateStateResponse.class);
-        registerMessageHandler("Number", new NumberMessageHandler(this), ListEntitiesNumberResponse.class,
+        registerMessageHandler(new NumberMessageHandler(this), ListEntitiesNumberResponse.class,
                 NumberStateResponse.class);
-        registerMessageHandler("Light", new LightMessageHandler(this), ListEntitiesLightResponse.class,
+        registerMessageHandler(new LightMessageHandler(this), ListEntitiesLightResponse.class,
                 LightStateResponse.class);
-        registerMessageHandler("Button", new ButtonMessageHandler(this), ListEntitiesButtonResponse.class,
+        registerMessageHandler(new ButtonMessageHandler(this), ListEntitiesButtonResponse.class,
                 ButtonCommandRequest.class);
+
+        route(DeviceInfoResponse.class, this::handleDeviceInfo);
+        route(ListEntitiesDoneResponse.class, this::handleListEntitiesDone);
+        route(PingRequest.class, this::handlePingRequest);
+        route(PingResponse.class, this::handlePingResponse);
+        route(DisconnectRequest.class, this::handleDisconnectRequest);
+        route(DisconnectResponse.class, rsp -> connection.close());
     }
 
-    private void registerMessageHandler(String select,
-            AbstractMessageHandler<? extends GeneratedMessageV3, ? extends GeneratedMessageV3> messageHandler,
-            Class<? extends GeneratedMessageV3> listEntitiesClass, Class<? extends GeneratedMessageV3> stateClass) {
+    private <S extends GeneratedMessageV3, T extends GeneratedMessageV3> void registerMessageHandler(
+            AbstractMessageHandler<S, T> messageHandler, Class<S> listEntitiesClass, Class<T> stateClass) {
+
+        commandTypeToHandlerMap.put(messageHandler.getEntityType(), messageHandler);
+        route(listEntitiesClass, messageHandler::buildChannels);
+        route(stateClass, message -> {
+            if (!interrogated) {
+                // Only with a pipelined handshake, the channels are not known yet
+                statesBeforeInterrogation = true;
+                return;
+            }
+            try {
+                messageHandler.handleState(message);
+            } catch (Exception e) {
+                logger.warn("[{}] Error updating OH state", config.hostname, e);
+            }
+        });
+    }
 
-        commandTypeToHandlerMap.put(select, messageHandler);
-        classToHandlerMap.put(listEntitiesClass, messageHandler);
-        classToHandlerMap.put(stateClass, messageHandler);
+    /**
+     * Route messages of the given class to the consumer while connected
+     */
+    @SuppressWarnings("unchecked")
+    private <M extends GeneratedMessageV3> void route(Class<M> messageClass, MessageConsumer<M> consumer) {
+        // Safe, as the wire id determines the message class
+        connectedRoutes[MessageCodec.messageId(messageClass)] = (MessageConsumer<GeneratedMessageV3>) consumer;
     }
 
     @Override
     public void initialize() {
         logger.debug("[{}] Initializing ESPHome handler", thing.getUID());
+        // The framework reinitializes the same handler after dispose() on configuration changes
+        disposed = false;
         config = getConfigAs(ESPHomeConfiguration.class);
+        inboundQueue = new InboundMessageQueue(config.inboundQueueSize, this::setReading);
+        // The channels of the thing are used as they are while the device runs the firmware they were built for
+        String firmware = thing.getProperties().get(BindingConstants.PROPERTY_INTERROGATED_FIRMWARE);
+        interrogated = firmware != null && restoreChannels();
+        interrogatedFirmware = interrogated ? firmware : null;
 
-        if (config.hostname != null && !config.hostname.isEmpty()) {
-            scheduleReconnect(0);
-        } else {
+        if (config.hostname == null || config.hostname.isEmpty()) {
             updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.CONFIGURATION_ERROR, "No hostname configured");
+            return;
+        }
+        if (isEncrypted()) {
+            try {
+                EncryptedStreamHandler.decodeKey(config.encryptionKey);
+            } catch (ProtocolAPIError e) {
+                updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.CONFIGURATION_ERROR, e.getMessage());
+                return;
+            }
         }
+        reconnectAttempts = 0;
+        scheduleReconnect();
+    }
+
+    private boolean isEncrypted() {
+        return config.encryptionKey != null && !config.encryptionKey.isBlank();
     }
 
     @Override
@@ -178,59 +274,137 @@ public class ESPHomeHandler extends BaseThingHandler implements PacketListener {
         super.handleRemoval();
     }
 
-    private void connect() {
+    private void resolveAndConnect() {
+        if (disposed) {
+            return;
+        }
+        // Name resolution may block, the connection itself is set up by the packet executor like all handler state
+        InetSocketAddress address = new InetSocketAddress(config.hostname, config.port);
+        packetExecutor.execute(() -> connect(address));
+    }
+
+    private void connect(InetSocketAddress address) {
+        if (disposed) {
+            return;
+        }
         try {
-            dynamicChannels.clear();
+            stateConflator.clear();
+            clearLastValues();
+            // Anything still queued belongs to the previous connection
+            inboundQueue.clear();
 
             logger.info("[{}] Trying to connect to {}:{}", config.hostname, config.hostname, config.port);
             updateStatus(ThingStatus.UNKNOWN, ThingStatusDetail.NONE,
                     String.format("Connecting to %s:%d", config.hostname, config.port));
 
-            connection = new ESPHomeConnection(connectionSelector, new PlainTextStreamHandler(this), config.hostname);
-            connection.connect(new InetSocketAddress(config.hostname, config.port));
+            StreamHandler streamHandler = isEncrypted()
+                    ? new EncryptedStreamHandler(this, config.encryptionKey, config.maxFrameSize)
+                    : new PlainTextStreamHandler(this, config.maxFrameSize);
+            ESPHomeConnection newConnection = new ESPHomeConnection(connectionSelector, streamHandler,
+                    config.hostname);
+            connection = newConnection;
+            newConnection.connect(address, config.connectTimeout * 1000).whenComplete((result, e) -> {
+                if (e != null) {
+                    // Completed on the selector thread
+                    packetExecutor.execute(() -> onConnectFailed(newConnection, e));
+                }
+            });
 
+            // Queued until the connect and any encryption handshake completes
             HelloRequest helloRequest = HelloRequest.newBuilder().setClientInfo("openHAB")
                     .setApiVersionMajor(API_VERSION_MAJOR).setApiVersionMinor(API_VERSION_MINOR).build();
             connectionState = ConnectionState.HELLO_SENT;
+            pipelined = config.pipelineHandshake;
+            entitiesRequested = !interrogated;
+            statesBeforeInterrogation = false;
             connection.send(helloRequest);
+            if (pipelined) {
+                // The rest of the handshake in the same burst, the responses are validated in order as they arrive
+                connection.send(connectRequest());
+                connection.send(DeviceInfoRequest.getDefaultInstance());
+                if (entitiesRequested) {
+                    connection.send(ListEntitiesRequest.getDefaultInstance());
+                }
+                // With cached entities the states follow the device info right away
+                connection.send(SubscribeStatesRequest.getDefaultInstance());
+            }
 
         } catch (ProtocolException e) {
             logger.warn("[{}] Error initial connection", config.hostname, e);
             updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR, e.getMessage());
             if (!disposed) { // Don't reconnect if we've been disposed
-                scheduleReconnect(CONNECT_TIMEOUT * 2);
+                scheduleReconnect();
             }
         }
     }
 
+    private void onConnectFailed(ESPHomeConnection failedConnection, Throwable e) {
+        if (disposed || failedConnection != connection) {
+            // Closed on purpose, or superseded by a newer connection
+            return;
+        }
+        logger.warn("[{}] Error initial connection: {}", config.hostname, e.getMessage());
+        updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR, e.getMessage());
+        connectionState = ConnectionState.UNINITIALIZED;
+        // Let another device connect while this one backs off
+        reconnectCoordinator.release(this);
+        scheduleReconnect();
+    }
+
     @Override
     public void dispose() {
+        disposed = true;
+        commandDebouncer.cancel(this);
         setUndefToAllChannels();
-        cancelReconnectFuture();
+        reconnectCoordinator.cancel(this);
         if (connection != null) {
-            cancelPingWatchdog();
+            cancelLivenessWatch();
 
+            ESPHomeConnection closingConnection = connection;
             if (connectionState == ConnectionState.CONNECTED) {
                 try {
-                    connection.send(DisconnectRequest.getDefaultInstance());
+                    // Messages are no longer handled, so close once the request is written rather than on the response
+                    closingConnection.send(DisconnectRequest.getDefaultInstance())
+                            .orTimeout(DISCONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                            .whenComplete((result, e) -> closingConnection.close());
                 } catch (ProtocolAPIError e) {
-                    // Quietly ignore
+                    closingConnection.close();
                 }
             } else {
-                connection.close();
+                closingConnection.close();
             }
+            connectionState = ConnectionState.UNINITIALIZED;
         }
-        disposed = true;
         super.dispose();
     }
 
+    public CommandDebouncer getCommandDebouncer() {
+        return commandDebouncer;
+    }
+
     public void sendMessage(GeneratedMessageV3 message) throws ProtocolAPIError {
         connection.send(message);
     }
 
+    /**
+     * Pause reading from the device while the inbound queue is full
+     */
+    private void setReading(boolean reading) {
+        ESPHomeConnection current = connection;
+        if (current != null) {
+            current.setReading(reading);
+        }
+    }
+
+    private void clearLastValues() {
+        commandTypeToHandlerMap.values().forEach(AbstractMessageHandler::clearLastValues);
+    }
+
     private void setUndefToAllChannels() {
         // Update all channels to UNDEF to avoid stale values
-        getThing().getChannels().forEach(channel -> updateState(channel.getUID(), UnDefType.UNDEF));
+        stateConflator.clear();
+        clearLastValues();
+        getThing().getChannels().forEach(channel -> super.updateState(channel.getUID(), UnDefType.UNDEF));
     }
 
     @Override
@@ -242,6 +416,9 @@ public class ESPHomeHandler extends BaseThingHandler implements PacketListener {
         }
 
         if (command == RefreshType.REFRESH) {
+            // The device sends all states again, publish them even if unchanged. Cleared in order with the
+            // handling of states, which the last values are not safe to share with
+            packetExecutor.execute(this::clearLastValues);
             try {
                 connection.send(SubscribeStatesRequest.getDefaultInstance());
             } catch (ProtocolAPIError e) {
@@ -278,86 +455,260 @@ public class ESPHomeHandler extends BaseThingHandler implements PacketListener {
     }
 
     @Override
-    public void onPacket(@NonNull GeneratedMessageV3 message) throws ProtocolAPIError {
-        switch (connectionState) {
-            case UNINITIALIZED -> logger.warn("[{}] Received packet while uninitialized.", config.hostname);
-            case HELLO_SENT -> handleHelloResponse(message);
-            case LOGIN_SENT -> handleLoginResponse(message);
-            case CONNECTED -> handleConnected(message);
+    public void onPacket(int messageType, @NonNull GeneratedMessageV3 message) {
+        InboundMessageQueue.Offer offer = inboundQueue.offer(messageType, message);
+        // One task per queued entry, conflated messages don't need one
+        if (offer != InboundMessageQueue.Offer.CONFLATED) {
+            packetExecutor.execute(this::handleNextPacket);
+        }
+        if (offer != InboundMessageQueue.Offer.QUEUED && queuePropertiesScheduled.compareAndSet(false, true)) {
+            // Overflowing, publish the counters once the burst had time to settle
+            scheduler.schedule(() -> {
+                queuePropertiesScheduled.set(false);
+                updateInboundQueueProperties();
+            }, QUEUE_PROPERTIES_DELAY_SECONDS, TimeUnit.SECONDS);
         }
     }
 
     @Override
     public void onEndOfStream() {
+        packetExecutor.execute(this::handleEndOfStream);
+    }
+
+    @Override
+    public void onParseError() {
+        packetExecutor.execute(this::handleParseError);
+    }
+
+    private void handleNextPacket() {
+        InboundMessageQueue.Entry entry = inboundQueue.poll();
+        if (entry != null && !disposed) {
+            handlePacket(entry.messageType, entry.message);
+        }
+    }
+
+    private void handlePacket(int messageType, GeneratedMessageV3 message) {
+        try {
+            switch (connectionState) {
+                case UNINITIALIZED -> logger.warn("[{}] Received packet while uninitialized.", config.hostname);
+                case HELLO_SENT -> handleHelloResponse(message);
+                case LOGIN_SENT -> handleLoginResponse(message);
+                case CONNECTED -> handleConnected(messageType, message);
+            }
+        } catch (ProtocolAPIError e) {
+            logger.warn("[{}] Error handling packet", config.hostname, e);
+            handleParseError();
+        }
+    }
+
+    private void handleEndOfStream() {
+        if (disposed) {
+            // The connection was closed by dispose
+            return;
+        }
         updateStatus(ThingStatus.OFFLINE);
         setUndefToAllChannels();
         connection.close();
-        cancelPingWatchdog();
+        cancelLivenessWatch();
         connectionState = ConnectionState.UNINITIALIZED;
-        scheduleReconnect(CONNECT_TIMEOUT * 2);
+        scheduleReconnect();
     }
 
-    @Override
-    public void onParseError() {
+    private void handleParseError() {
+        if (disposed) {
+            return;
+        }
         updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR,
-                "Parse error. This could be due to api encryption being used by ESPHome device. Update your ESPHome device to use plaintext password until this is implemented in the binding.");
+                "Parse error. This could be due to api encryption being used by the ESPHome device, or a wrong encryption key. Check that the encryptionKey matches the device configuration.");
         setUndefToAllChannels();
-        cancelPingWatchdog();
+        cancelLivenessWatch();
         connection.close();
         connectionState = ConnectionState.UNINITIALIZED;
-        scheduleReconnect(CONNECT_TIMEOUT * 2);
+        scheduleReconnect();
     }
 
-    private void handleConnected(GeneratedMessageV3 message) throws ProtocolAPIError {
+    private void handleConnected(int messageType, GeneratedMessageV3 message) throws ProtocolAPIError {
         logger.debug("[{}] Received message {}", config.hostname, message);
-        if (message instanceof DeviceInfoResponse rsp) {
-            Map<String, String> props = new HashMap<>();
-            props.put("esphome_version", rsp.getEsphomeVersion());
-            props.put("mac_address", rsp.getMacAddress());
-            props.put("model", rsp.getModel());
-            props.put("name", rsp.getName());
-            props.put("manufacturer", rsp.getManufacturer());
-            props.put("compilation_time", rsp.getCompilationTime());
-            updateThing(editThing().withProperties(props).build());
-        } else if (message instanceof ListEntitiesDoneResponse) {
-            updateThing(editThing().withChannels(dynamicChannels).build());
-            logger.debug("[{}] Device interrogation complete, done updating thing channels", config.hostname);
-            interrogated = true;
+        MessageConsumer<GeneratedMessageV3> route = messageType < connectedRoutes.length ? connectedRoutes[messageType]
+                : null;
+        if (route != null) {
+            route.accept(message);
+        } else {
+            logger.warn("[{}] Unhandled message of type {}. This is lack of support in the binding. Content: '{}'.",
+                    config.hostname, message.getClass().getName(), message);
+        }
+    }
+
+    private void handleDeviceInfo(DeviceInfoResponse rsp) throws ProtocolAPIError {
+        Map<String, String> props = new HashMap<>();
+        props.put("esphome_version", rsp.getEsphomeVersion());
+        props.put("mac_address", rsp.getMacAddress());
+        props.put("model", rsp.getModel());
+        props.put("name", rsp.getName());
+        props.put("manufacturer", rsp.getManufacturer());
+        props.put("compilation_time", rsp.getCompilationTime());
+
+        String firmware = String.join("|", String.valueOf(CHANNEL_LAYOUT_VERSION), rsp.getMacAddress(),
+                rsp.getEsphomeVersion(), rsp.getCompilationTime());
+        props.put(BindingConstants.PROPERTY_INTERROGATED_FIRMWARE, firmware);
+        if (interrogated && firmware.equals(interrogatedFirmware)) {
+            logger.debug("[{}] Firmware unchanged since last interrogation, reusing channels", config.hostname);
+            updateThingIfChanged(props, null);
+            onInterrogationComplete();
+            if (!pipelined) {
+                connection.send(SubscribeStatesRequest.getDefaultInstance());
+            }
+        } else {
+            logger.debug("[{}] Starting device interrogation", config.hostname);
+            interrogated = false;
+            interrogatedFirmware = firmware;
+            deviceProperties = props;
+            dynamicChannels.clear();
+            dynamicChannelTypes.clear();
+            commandTypeToHandlerMap.values().forEach(AbstractMessageHandler::resetChannels);
+            stateConflator.reset();
+            if (!entitiesRequested) {
+                connection.send(ListEntitiesRequest.getDefaultInstance());
+            }
+        }
+    }
+
+    private void handleListEntitiesDone(ListEntitiesDoneResponse rsp) throws ProtocolAPIError {
+        // Channel types first, as the channels refer to them. Also removes those only the previous channels used
+        dynamicChannelTypeProvider.putChannelTypes(thing.getUID(), dynamicChannelTypes.values());
+        dynamicChannelTypes.clear();
+        updateThingIfChanged(deviceProperties, dynamicChannels);
+        deviceProperties = null;
+        // States are routed through the index from now on
+        commandTypeToHandlerMap.values().forEach(AbstractMessageHandler::indexChannels);
+        logger.debug("[{}] Device interrogation complete, done updating thing channels", config.hostname);
+        interrogated = true;
+        onInterrogationComplete();
+        if (!pipelined || statesBeforeInterrogation) {
+            statesBeforeInterrogation = false;
             connection.send(SubscribeStatesRequest.getDefaultInstance());
-        } else if (message instanceof PingRequest) {
-            logger.debug("[{}] Responding to ping request", config.hostname);
-            connection.send(PingResponse.getDefaultInstance());
-
-        } else if (message instanceof PingResponse) {
-            logger.debug("[{}] Received ping response", config.hostname);
-            lastPong = Instant.now();
-        } else if (message instanceof DisconnectRequest) {
-            connection.send(DisconnectResponse.getDefaultInstance());
-            remoteDisconnect();
-        } else if (message instanceof DisconnectResponse) {
-            connection.close();
+        }
+    }
+
+    /**
+     * Resolve the channels of the thing for state routing, as built by the last interrogation
+     *
+     * @return false if a channel can't be restored, and the device needs to be interrogated again
+     */
+    private boolean restoreChannels() {
+        commandTypeToHandlerMap.values().forEach(AbstractMessageHandler::resetChannels);
+        stateConflator.reset();
+        for (Channel channel : thing.getChannels()) {
+            String entityType = channel.getProperties().get(BindingConstants.CHANNEL_PROPERTY_ENTITY_TYPE);
+            AbstractMessageHandler<?, ?> messageHandler = entityType != null ? commandTypeToHandlerMap.get(entityType)
+                    : null;
+            ChannelTypeUID channelTypeUID = channel.getChannelTypeUID();
+            ChannelType channelType = channelTypeUID != null
+                    ? dynamicChannelTypeProvider.getChannelType(channelTypeUID, null)
+                    : null;
+            if (messageHandler == null || channelType == null) {
+                logger.debug("[{}] Channel {} can't be restored, interrogating device", thing.getUID(),
+                        channel.getUID());
+                commandTypeToHandlerMap.values().forEach(AbstractMessageHandler::resetChannels);
+                return false;
+            }
+            messageHandler.restoreChannel(channel, channelType);
+        }
+        commandTypeToHandlerMap.values().forEach(AbstractMessageHandler::indexChannels);
+        dynamicChannels.clear();
+        dynamicChannels.addAll(thing.getChannels());
+        logger.debug("[{}] Restored {} channels", thing.getUID(), dynamicChannels.size());
+        return true;
+    }
+
+    /**
+     * Update the thing with the given properties and channels, in a single update and only if they differ from the
+     * current thing
+     *
+     * @param properties properties to add or change, or null to leave properties as they are
+     * @param channels channels to replace the current channels with, or null to leave channels as they are
+     */
+    private void updateThingIfChanged(@Nullable Map<String, String> properties, @Nullable List<Channel> channels) {
+        ThingBuilder builder = editThing();
+        boolean changed = false;
+        if (properties != null && !thing.getProperties().entrySet().containsAll(properties.entrySet())) {
+            Map<String, String> merged = new HashMap<>(thing.getProperties());
+            merged.putAll(properties);
+            builder.withProperties(merged);
+            changed = true;
+        }
+        if (channels != null && !sameChannels(thing.getChannels(), channels)) {
+            builder.withChannels(channels);
+            changed = true;
+        }
+        if (changed) {
+            updateThing(builder.build());
         } else {
-            // Regular messages handled by message handlers
-            AbstractMessageHandler<? extends GeneratedMessageV3, ? extends GeneratedMessageV3> abstractMessageHandler = classToHandlerMap
-                    .get(message.getClass());
-            if (abstractMessageHandler != null) {
-                abstractMessageHandler.handleMessage(message);
-            } else {
-                logger.warn("[{}] Unhandled message of type {}. This is lack of support in the binding. Content: '{}'.",
-                        config.hostname, message.getClass().getName(), message);
+            logger.debug("[{}] Thing unchanged, skipping update", config.hostname);
+        }
+    }
+
+    private static boolean sameChannels(List<Channel> current, List<Channel> updated) {
+        if (current.size() != updated.size()) {
+            return false;
+        }
+        for (int i = 0; i < current.size(); i++) {
+            Channel a = current.get(i);
+            Channel b = updated.get(i);
+            if (!a.getUID().equals(b.getUID()) || !Objects.equals(a.getChannelTypeUID(), b.getChannelTypeUID())
+                    || !Objects.equals(a.getAcceptedItemType(), b.getAcceptedItemType()) || a.getKind() != b.getKind()
+                    || !Objects.equals(a.getLabel(), b.getLabel())
+                    || !Objects.equals(a.getDescription(), b.getDescription())
+                    || !a.getConfiguration().equals(b.getConfiguration())
+                    || !a.getProperties().equals(b.getProperties())
+                    || !a.getDefaultTags().equals(b.getDefaultTags())
+                    || a.getAutoUpdatePolicy() != b.getAutoUpdatePolicy()) {
+                return false;
             }
         }
+        return true;
+    }
+
+    private void handlePingRequest(PingRequest rsp) throws ProtocolAPIError {
+        logger.debug("[{}] Responding to ping request", config.hostname);
+        connection.send(PingResponse.getDefaultInstance());
+    }
+
+    private void handlePingResponse(PingResponse rsp) {
+        // Any data received counts as a sign of life, see LivenessMonitor
+        logger.debug("[{}] Received ping response", config.hostname);
+    }
+
+    private void handleLivenessTimeout(ESPHomeConnection deadConnection) {
+        if (disposed || deadConnection != connection || connectionState == ConnectionState.UNINITIALIZED) {
+            // Connection already replaced or closed
+            return;
+        }
+        logger.warn("[{}] Nothing received for {} seconds despite {} pings. Assuming connection lost and disconnecting",
+                config.hostname, config.maxPingTimeouts * config.pingInterval, config.maxPingTimeouts);
+        livenessWatch = null;
+        deadConnection.close();
+        connectionState = ConnectionState.UNINITIALIZED;
+        updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR,
+                String.format("ESPHome did not respond to ping requests. %d pings sent with %d s delay",
+                        config.maxPingTimeouts, config.pingInterval));
+        setUndefToAllChannels();
+        scheduleReconnect();
+    }
+
+    private void handleDisconnectRequest(DisconnectRequest rsp) throws ProtocolAPIError {
+        connection.send(DisconnectResponse.getDefaultInstance());
+        remoteDisconnect();
     }
 
     private void remoteDisconnect() {
         connection.close();
         setUndefToAllChannels();
         connectionState = ConnectionState.UNINITIALIZED;
-        int reconnectDelaySeconds = CONNECT_TIMEOUT;
+        cancelLivenessWatch();
+        long reconnectDelaySeconds = scheduleReconnect() / 1000;
         updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.NONE, String
                 .format("ESPHome device requested disconnect. Will reconnect in %d seconds", reconnectDelaySeconds));
-        cancelPingWatchdog();
-        scheduleReconnect(reconnectDelaySeconds);
     }
 
     private void handleLoginResponse(GeneratedMessageV3 message) throws ProtocolAPIError {
@@ -369,50 +720,57 @@ public class ESPHomeHandler extends BaseThingHandler implements PacketListener {
                 connection.close();
                 connectionState = ConnectionState.UNINITIALIZED;
                 updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.CONFIGURATION_ERROR, "Invalid password");
+                reconnectCoordinator.release(this);
                 return;
             }
             connectionState = ConnectionState.CONNECTED;
             updateStatus(ThingStatus.ONLINE);
-            logger.debug("[{}] Device login complete, starting device interrogation", config.hostname);
-
-            // Reset last pong
-            lastPong = Instant.now();
-
-            pingWatchdogFuture = scheduler.scheduleAtFixedRate(() -> {
-
-                if (lastPong.plusSeconds(config.maxPingTimeouts * config.pingInterval).isBefore(Instant.now())) {
-                    logger.warn(
-                            "[{}] Ping responses lacking Waited {} times {} seconds, total of {}. Assuming connection lost and disconnecting",
-                            config.hostname, config.maxPingTimeouts, config.pingInterval,
-                            config.maxPingTimeouts * config.pingInterval);
-                    pingWatchdogFuture.cancel(false);
-                    connection.close();
-                    connectionState = ConnectionState.UNINITIALIZED;
-                    updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR,
-                            String.format("ESPHome did not respond to ping requests. %d pings sent with %d s delay",
-                                    config.maxPingTimeouts, config.pingInterval));
-                    scheduleReconnect(10);
+            logger.debug("[{}] Device login complete, requesting device info", config.hostname);
 
-                } else {
+            ESPHomeConnection watchedConnection = connection;
+            livenessWatch = livenessMonitor.watch(new LivenessMonitor.Target() {
+                @Override
+                public long lastReceiveNanos() {
+                    return watchedConnection.getLastReceiveNanos();
+                }
 
+                @Override
+                public void onIdle() {
                     try {
                         logger.debug("[{}] Sending ping", config.hostname);
-                        connection.send(PingRequest.getDefaultInstance());
+                        watchedConnection.send(PingRequest.getDefaultInstance());
                     } catch (ProtocolAPIError e) {
                         logger.warn("[{}] Error sending ping request", config.hostname, e);
                     }
                 }
-            }, config.pingInterval, config.pingInterval, TimeUnit.SECONDS);
 
-            connection.send(DeviceInfoRequest.getDefaultInstance());
-            connection.send(ListEntitiesRequest.getDefaultInstance());
+                @Override
+                public void onDead() {
+                    packetExecutor.execute(() -> handleLivenessTimeout(watchedConnection));
+                }
+            }, config.pingInterval * 1000L, config.maxPingTimeouts * config.pingInterval * 1000L);
+
+            if (!pipelined) {
+                connection.send(DeviceInfoRequest.getDefaultInstance());
+                if (entitiesRequested) {
+                    connection.send(ListEntitiesRequest.getDefaultInstance());
+                }
+                // Otherwise entities are only listed when the firmware changed, see handleDeviceInfo
+            }
 
         }
     }
 
     @Override
     public void updateState(ChannelUID channelUID, State state) {
-        super.updateState(channelUID, state);
+        stateConflator.update(channelUID, state);
+    }
+
+    /**
+     * Hold back state updates of the channel for the given number of milliseconds, publishing only the last one
+     */
+    public void setStateWindow(ChannelUID channelUID, int windowMillis) {
+        stateConflator.setWindow(channelUID, windowMillis);
     }
 
     private void handleHelloResponse(GeneratedMessageV3 message) throws ProtocolAPIError {
@@ -423,11 +781,8 @@ public class ESPHomeHandler extends BaseThingHandler implements PacketListener {
                     helloResponse.getApiVersionMinor());
             connectionState = ConnectionState.LOGIN_SENT;
 
-            if (config.password != null && !config.password.isEmpty()) {
-                connection.send(ConnectRequest.newBuilder().setPassword(config.password).build());
-            } else {
-                connection.send(ConnectRequest.getDefaultInstance());
-
+            if (!pipelined) {
+                connection.send(connectRequest());
             }
 
         }
@@ -435,14 +790,42 @@ public class ESPHomeHandler extends BaseThingHandler implements PacketListener {
         // Check if
     }
 
+    private ConnectRequest connectRequest() {
+        if (config.password != null && !config.password.isEmpty()) {
+            return ConnectRequest.newBuilder().setPassword(config.password).build();
+        } else {
+            return ConnectRequest.getDefaultInstance();
+        }
+    }
+
+    private void updateInboundQueueProperties() {
+        String conflated = String.valueOf(inboundQueue.getConflated());
+        String overCapacity = String.valueOf(inboundQueue.getOverCapacity());
+        // Only touch the thing when a counter moved
+        if (!conflated.equals(thing.getProperties().get(PROPERTY_CONFLATED_MESSAGES))
+                || !overCapacity.equals(thing.getProperties().get(PROPERTY_OVER_CAPACITY_MESSAGES))) {
+            logger.debug("[{}] Inbound queue overflow, {} states conflated and {} messages queued over capacity so far",
+                    config.hostname, conflated, overCapacity);
+            Map<String, String> props = new HashMap<>(thing.getProperties());
+            props.put(PROPERTY_CONFLATED_MESSAGES, conflated);
+            props.put(PROPERTY_OVER_CAPACITY_MESSAGES, overCapacity);
+            updateProperties(props);
+        }
+    }
+
     public void addChannelType(ChannelType channelType) {
-        dynamicChannelTypeProvider.putChannelType(channelType);
+        dynamicChannelTypes.put(channelType.getUID(), channelType);
     }
 
     public void addChannel(Channel channel) {
         dynamicChannels.add(channel);
     }
 
+    @FunctionalInterface
+    private interface MessageConsumer<M extends GeneratedMessageV3> {
+        void accept(M message) throws ProtocolAPIError;
+    }
+
     private enum ConnectionState {
         // Initial state, no connection
         UNINITIALIZED,
@@ -457,23 +840,39 @@ public class ESPHomeHandler extends BaseThingHandler implements PacketListener {
 
     }
 
-    private void cancelPingWatchdog() {
-        if (pingWatchdogFuture != null) {
-            pingWatchdogFuture.cancel(true);
-            pingWatchdogFuture = null;
+    private void cancelLivenessWatch() {
+        if (livenessWatch != null) {
+            livenessWatch.cancel();
+            livenessWatch = null;
         }
     }
 
-    private void cancelReconnectFuture() {
-        if (reconnectFuture != null) {
-            reconnectFuture.cancel(true);
-            reconnectFuture = null;
+    /**
+     * Schedule a connection attempt with the binding wide reconnect coordinator, backing off with the number of failed
+     * attempts. This also releases the connect permit of the previous attempt.
+     *
+     * @return milliseconds until the attempt, not counting the wait for other devices to connect
+     */
+    private long scheduleReconnect() {
+        if (disposed) {
+            return 0;
         }
+        Instant interrogatedAt = lastInterrogated;
+        boolean recentlyHealthy = interrogatedAt != null
+                && interrogatedAt.plus(RECENTLY_HEALTHY).isAfter(Instant.now());
+        long delayMillis = reconnectCoordinator.schedule(this, reconnectAttempts++, recentlyHealthy,
+                () -> scheduler.execute(this::resolveAndConnect));
+        logger.debug("[{}] Reconnecting in {} ms", thing.getUID(), delayMillis);
+        return delayMillis;
     }
 
-    private void scheduleReconnect(int delaySeconds) {
-        cancelReconnectFuture();
-        reconnectFuture = scheduler.schedule(this::connect, delaySeconds, TimeUnit.SECONDS);
+    /**
+     * The device is connected and its channels are ready, let other devices connect
+     */
+    private void onInterrogationComplete() {
+        reconnectAttempts = 0;
+        lastInterrogated = Instant.now();
+        reconnectCoordinator.release(this);
     }
 
     public boolean isInterrogated() {
@@ -13,6 +13,7 @@
 package no.seime.openhab.binding.esphome.internal.handler;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.Set;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
@@ -25,10 +26,17 @@ import org.openhab.core.thing.binding.ThingHandlerFactory;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import no.seime.openhab.binding.esphome.internal.BindingConstants;
 import no.seime.openhab.binding.esphome.internal.comm.ConnectionSelector;
+import no.seime.openhab.binding.esphome.internal.util.CommandDebouncer;
+import no.seime.openhab.binding.esphome.internal.util.DeviceExecutors;
+import no.seime.openhab.binding.esphome.internal.util.LivenessMonitor;
+import no.seime.openhab.binding.esphome.internal.util.ReconnectCoordinator;
 
 /**
  * The {@link ESPHomeHandlerFactory} is responsible for creating things and thing
@@ -42,6 +50,8 @@ public class ESPHomeHandlerFactory extends BaseThingHandlerFactory {
 
     private static final Set<ThingTypeUID> SUPPORTED_THING_TYPES_UIDS = Set.of(BindingConstants.THING_TYPE_DEVICE);
 
+    private final Logger logger = LoggerFactory.getLogger(ESPHomeHandlerFactory.class);
+
     @Override
     public boolean supportsThingType(ThingTypeUID thingTypeUID) {
         return SUPPORTED_THING_TYPES_UIDS.contains(thingTypeUID);
@@ -49,12 +59,48 @@ public class ESPHomeHandlerFactory extends BaseThingHandlerFactory {
 
     private ConnectionSelector connectionSelector;
 
+    private final DeviceExecutors deviceExecutors;
+
+    private final CommandDebouncer commandDebouncer;
+
+    private final ReconnectCoordinator reconnectCoordinator;
+
+    private final LivenessMonitor livenessMonitor;
+
     private final ESPChannelTypeProvider dynamicChannelTypeProvider;
 
     @Activate
-    public ESPHomeHandlerFactory(@Reference ESPChannelTypeProvider dynamicChannelTypeProvider) throws IOException {
+    public ESPHomeHandlerFactory(@Reference ESPChannelTypeProvider dynamicChannelTypeProvider,
+            Map<String, Object> config) throws IOException {
         this.dynamicChannelTypeProvider = dynamicChannelTypeProvider;
         connectionSelector = new ConnectionSelector();
+        deviceExecutors = new DeviceExecutors();
+        commandDebouncer = new CommandDebouncer();
+        reconnectCoordinator = new ReconnectCoordinator(maxConcurrentConnects(config),
+                ReconnectCoordinator.DEFAULT_MAX_PERMIT_MILLIS);
+        livenessMonitor = new LivenessMonitor();
+    }
+
+    @Modified
+    protected void modified(Map<String, Object> config) {
+        // Devices already connecting keep their permit, the new limit applies to those admitted from now on
+        reconnectCoordinator.setMaxConcurrentConnects(maxConcurrentConnects(config));
+    }
+
+    private int maxConcurrentConnects(Map<String, Object> config) {
+        // Numbers from the UI, text from a services configuration file
+        Object value = config.get(BindingConstants.CONFIG_MAX_CONCURRENT_CONNECTS);
+        if (value instanceof Number number) {
+            return number.intValue();
+        } else if (value != null) {
+            try {
+                return Integer.parseInt(value.toString().trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid {} '{}', using {}", BindingConstants.CONFIG_MAX_CONCURRENT_CONNECTS, value,
+                        ReconnectCoordinator.DEFAULT_MAX_CONCURRENT_CONNECTS);
+            }
+        }
+        return ReconnectCoordinator.DEFAULT_MAX_CONCURRENT_CONNECTS;
     }
 
     @Override
@@ -62,7 +108,8 @@ public class ESPHomeHandlerFactory extends BaseThingHandlerFactory {
         ThingTypeUID thingTypeUID = thing.getThingTypeUID();
 
         if (BindingConstants.THING_TYPE_DEVICE.equals(thingTypeUID)) {
-            return new ESPHomeHandler(thing, connectionSelector, dynamicChannelTypeProvider);
+            return new ESPHomeHandler(thing, connectionSelector, deviceExecutors.newSerialExecutor(),
+                    commandDebouncer, reconnectCoordinator, livenessMonitor, dynamicChannelTypeProvider);
         }
 
         return null;
@@ -77,6 +124,10 @@ public class ESPHomeHandlerFactory extends BaseThingHandlerFactory {
     @Override
     protected void deactivate(ComponentContext componentContext) {
         connectionSelector.stop();
+        deviceExecutors.stop();
+        commandDebouncer.stop();
+        reconnectCoordinator.stop();
+        livenessMonitor.stop();
 
         super.deactivate(componentContext);
     }
@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.handler;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+
+import com.google.protobuf.GeneratedMessageV3;
+
+import io.esphome.api.BinarySensorStateResponse;
+import io.esphome.api.ClimateStateResponse;
+import io.esphome.api.LightStateResponse;
+import io.esphome.api.NumberStateResponse;
+import io.esphome.api.SelectStateResponse;
+import io.esphome.api.SensorStateResponse;
+import io.esphome.api.SwitchStateResponse;
+import io.esphome.api.TextSensorStateResponse;
+import no.seime.openhab.binding.esphome.internal.comm.MessageCodec;
+import no.seime.openhab.binding.esphome.internal.util.IntObjectMap;
+
+/**
+ * Bounded queue of messages received from a device and waiting to be handled, which conflates entity states once it
+ * is full.
+ * <p>
+ * Once the queue is full, reading from the device is paused through the {@link ReadControl} until the queue is
+ * drained to half its capacity, so that the device is held back by TCP flow control. Messages decoded from data read
+ * before reading was paused are still accepted: a state message replaces the pending state of the same entity, so
+ * only the latest known state is kept, and other messages, like ping and entity listings, are queued beyond the
+ * capacity, as the connection can't do without them. Those are counted, see {@link #getOverCapacity()}.
+ *
+ * @author Arne Seime - Initial contribution
+ */
+@NonNullByDefault
+class InboundMessageQueue {
+
+    /**
+     * Stops and resumes reading from the device. Called with the queue locked, so calls are never reordered
+     */
+    interface ReadControl {
+        void setReading(boolean reading);
+    }
+
+    private static final long NOT_CONFLATABLE = -1;
+
+    private final int capacity;
+
+    private final ReadControl readControl;
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+    // Last state message queued per entity key, indexed by message type. Entries stay once handled, as the number of
+    // entities of a device is bounded
+    @SuppressWarnings("unchecked")
+    private final @Nullable IntObjectMap<Entry>[] pendingStates = new IntObjectMap[MessageCodec.MAX_MESSAGE_ID + 1];
+
+    private boolean readPaused;
+
+    private final AtomicLong conflated = new AtomicLong();
+    private final AtomicLong overCapacity = new AtomicLong();
+
+    /**
+     * Outcome of offering a message to the queue
+     */
+    enum Offer {
+        // Added as a new entry
+        QUEUED,
+        // Added as a new entry while the queue was full
+        QUEUED_OVER_CAPACITY,
+        // Replaced the pending state of the same entity
+        CONFLATED
+    }
+
+    InboundMessageQueue(int capacity, ReadControl readControl) {
+        this.capacity = Math.max(1, capacity);
+        this.readControl = readControl;
+    }
+
+    synchronized Offer offer(int messageType, GeneratedMessageV3 message) {
+        long conflationKey = conflationKey(message);
+        boolean full = entries.size() >= capacity;
+        @Nullable
+        IntObjectMap<Entry> states = null;
+        if (conflationKey != NOT_CONFLATABLE) {
+            states = pendingStates[messageType];
+            if (states == null) {
+                states = new IntObjectMap<>();
+                pendingStates[messageType] = states;
+            }
+            @Nullable
+            Entry pending = states.get((int) conflationKey);
+            if (full && pending != null && pending.queued) {
+                pending.message = message;
+                conflated.incrementAndGet();
+                return Offer.CONFLATED;
+            }
+        }
+
+        Entry entry = new Entry(messageType, message);
+        entries.add(entry);
+        if (states != null) {
+            states.put((int) conflationKey, entry);
+        }
+        if (!readPaused && entries.size() >= capacity) {
+            readPaused = true;
+            readControl.setReading(false);
+        }
+        if (full) {
+            overCapacity.incrementAndGet();
+            return Offer.QUEUED_OVER_CAPACITY;
+        }
+        return Offer.QUEUED;
+    }
+
+    synchronized @Nullable Entry poll() {
+        Entry entry = entries.poll();
+        if (entry != null) {
+            entry.queued = false;
+        }
+        if (readPaused && entries.size() <= capacity / 2) {
+            readPaused = false;
+            readControl.setReading(true);
+        }
+        return entry;
+    }
+
+    /**
+     * Drop all queued messages, for a new connection which reads from the start
+     */
+    synchronized void clear() {
+        entries.clear();
+        for (int i = 0; i < pendingStates.length; i++) {
+            pendingStates[i] = null;
+        }
+        readPaused = false;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Number of state messages that replaced a pending state of the same entity
+     */
+    long getConflated() {
+        return conflated.get();
+    }
+
+    /**
+     * Number of messages queued while the queue was full, states of entities with nothing pending and other messages
+     */
+    long getOverCapacity() {
+        return overCapacity.get();
+    }
+
+    /**
+     * @return the entity key of a state message, or {@link #NOT_CONFLATABLE}
+     */
+    private static long conflationKey(GeneratedMessageV3 message) {
+        int key;
+        if (message instanceof SensorStateResponse state) {
+            key = state.getKey();
+        } else if (message instanceof NumberStateResponse state) {
+            key = state.getKey();
+        } else if (message instanceof BinarySensorStateResponse state) {
+            key = state.getKey();
+        } else if (message instanceof TextSensorStateResponse state) {
+            key = state.getKey();
+        } else if (message instanceof SwitchStateResponse state) {
+            key = state.getKey();
+        } else if (message instanceof SelectStateResponse state) {
+            key = state.getKey();
+        } else if (message instanceof ClimateStateResponse state) {
+            key = state.getKey();
+        } else if (message instanceof LightStateResponse state) {
+            key = state.getKey();
+        } else {
+            return NOT_CONFLATABLE;
+        }
+        return key & 0xFFFFFFFFL;
+    }
+
+    static class Entry {
+        final int messageType;
+        GeneratedMessageV3 message;
+        // Whether the entry is still waiting to be handled
+        private boolean queued = true;
+
+        private Entry(int messageType, GeneratedMessageV3 message) {
+            this.messageType = messageType;
+            this.message = message;
+        }
+    }
+}
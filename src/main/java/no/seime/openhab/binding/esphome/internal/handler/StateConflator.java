@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.handler;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.openhab.core.thing.ChannelUID;
+import org.openhab.core.types.State;
+
+/**
+ * Holds back state updates for channels with a state window. The first update of a channel opens the window, later
+ * updates within the window replace the held state, and only the last one is published when the window closes.
+ * Channels without a window are published right away.
+ *
+ * @author Arne Seime - Initial contribution
+ */
+@NonNullByDefault
+class StateConflator {
+
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final BiConsumer<ChannelUID, State> publisher;
+
+    private final Map<ChannelUID, Integer> windows = new ConcurrentHashMap<>();
+    private final Map<ChannelUID, PendingState> pending = new ConcurrentHashMap<>();
+
+    /**
+     * @param scheduler timer for closing windows
+     * @param executor executor to publish on when a window closes, the one updates normally arrive on
+     * @param publisher target of the conflated updates
+     */
+    StateConflator(ScheduledExecutorService scheduler, Executor executor, BiConsumer<ChannelUID, State> publisher) {
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.publisher = publisher;
+    }
+
+    void setWindow(ChannelUID channelUID, int windowMillis) {
+        if (windowMillis > 0) {
+            windows.put(channelUID, windowMillis);
+        } else {
+            windows.remove(channelUID);
+        }
+    }
+
+    void update(ChannelUID channelUID, State state) {
+        Integer window = windows.get(channelUID);
+        if (window == null) {
+            publisher.accept(channelUID, state);
+            return;
+        }
+
+        PendingState held = pending.get(channelUID);
+        if (held != null) {
+            held.state = state;
+        } else {
+            PendingState opened = new PendingState(state);
+            pending.put(channelUID, opened);
+            scheduler.schedule(() -> executor.execute(() -> publish(channelUID, opened)), window,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void publish(ChannelUID channelUID, PendingState held) {
+        // Not published if cleared in the meantime
+        if (pending.remove(channelUID, held)) {
+            publisher.accept(channelUID, held.state);
+        }
+    }
+
+    /**
+     * Discard held states without publishing them
+     */
+    void clear() {
+        pending.clear();
+    }
+
+    /**
+     * Discard held states and windows, for when channels are rebuilt
+     */
+    void reset() {
+        pending.clear();
+        windows.clear();
+    }
+
+    private static class PendingState {
+        private volatile State state;
+
+        private PendingState(State state) {
+            this.state = state;
+        }
+    }
+}
@@ -1,10 +1,20 @@
 package no.seime.openhab.binding.esphome.internal.message;
 
 import java.math.BigDecimal;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import javax.measure.Unit;
@@ -12,19 +22,17 @@ import javax.validation.constraints.NotNull;
 
 import org.eclipse.jdt.annotation.Nullable;
 import org.openhab.core.config.core.Configuration;
-import org.openhab.core.library.types.DecimalType;
-import org.openhab.core.library.types.QuantityType;
 import org.openhab.core.thing.Channel;
+import org.openhab.core.thing.binding.builder.ChannelBuilder;
 import org.openhab.core.thing.type.AutoUpdatePolicy;
 import org.openhab.core.thing.type.ChannelType;
 import org.openhab.core.thing.type.ChannelTypeBuilder;
 import org.openhab.core.thing.type.ChannelTypeUID;
 import org.openhab.core.thing.type.StateChannelTypeBuilder;
 import org.openhab.core.types.Command;
-import org.openhab.core.types.State;
+import org.openhab.core.types.StateDescription;
 import org.openhab.core.types.StateDescriptionFragmentBuilder;
 import org.openhab.core.types.StateOption;
-import org.openhab.core.types.UnDefType;
 import org.openhab.core.types.util.UnitUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,22 +43,57 @@ import no.seime.openhab.binding.esphome.internal.BindingConstants;
 import no.seime.openhab.binding.esphome.internal.comm.ProtocolAPIError;
 import no.seime.openhab.binding.esphome.internal.handler.ESPHomeHandler;
 import no.seime.openhab.binding.esphome.internal.util.Debug;
+import no.seime.openhab.binding.esphome.internal.util.IntObjectMap;
 
 public abstract class AbstractMessageHandler<S extends GeneratedMessageV3, T extends GeneratedMessageV3> {
 
+    // Channel configuration set by the user rather than derived from the device
+    private static final List<String> USER_CONFIGURATION = List.of(BindingConstants.STATE_WINDOW,
+            BindingConstants.DEADBAND, BindingConstants.COMMAND_DEBOUNCE);
+
+    // Describes the user configuration above, see OH-INF/config/config.xml
+    private static final URI CHANNEL_CONFIG_DESCRIPTION_URI = URI.create("channel-type:esphome:entity");
+
+    private static final int MAX_CHANNEL_TYPE_SLUG_LENGTH = 32;
+    private static final int CHANNEL_TYPE_HASH_BYTES = 8;
+
     private final Logger logger = LoggerFactory.getLogger(AbstractMessageHandler.class);
     protected final ESPHomeHandler handler;
+    private final String entityType;
 
-    protected AbstractMessageHandler(ESPHomeHandler handler) {
+    // Channels registered while the device lists its entities, and the index built from them once it is done
+    private final List<ResolvedChannel> registeredChannels = new ArrayList<>();
+    private volatile IntObjectMap<ResolvedChannel> channelIndex = new IntObjectMap<>();
+
+    // Last published value per entity key
+    protected final LastValueCache lastValues = new LastValueCache();
+
+    /**
+     * @param entityType the type of the entities handled, stored on their channels so that the channels can be
+     *            restored without listing the entities again
+     */
+    protected AbstractMessageHandler(ESPHomeHandler handler, String entityType) {
         this.handler = handler;
+        this.entityType = entityType;
     }
 
-    protected ChannelType addChannelType(final String channelTypePrefix, final String label, final String itemType,
+    public String getEntityType() {
+        return entityType;
+    }
+
+    /**
+     * Create a channel type identified by its content, so that entities with equal channel types share one channel
+     * type, also across devices
+     *
+     * @param entityId unique id of the entity the channel type is created for, for logging
+     */
+    protected ChannelType addChannelType(final String entityId, final String label, final String itemType,
             final Collection<?> options, @Nullable final String pattern, @Nullable final Set<String> tags,
             boolean readOnly, String category, BigDecimal stateDescriptionStep, BigDecimal stateDescriptionMin,
             BigDecimal stateDescriptionMax) {
         final ChannelTypeUID channelTypeUID = new ChannelTypeUID(BindingConstants.BINDING_ID,
-                channelTypePrefix + handler.getThing().getUID().getId());
+                channelTypeId(label, itemType, options, pattern, tags, readOnly, category, stateDescriptionStep,
+                        stateDescriptionMin, stateDescriptionMax));
         final List<StateOption> stateOptions = options.stream().map(e -> new StateOption(e.toString(), e.toString()))
                 .collect(Collectors.toList());
 
@@ -73,7 +116,8 @@ public abstract class AbstractMessageHandler<S extends GeneratedMessageV3, T ext
         }
 
         final StateChannelTypeBuilder channelTypeBuilder = ChannelTypeBuilder.state(channelTypeUID, label, itemType)
-                .withStateDescriptionFragment(stateDescription.build());
+                .withStateDescriptionFragment(stateDescription.build())
+                .withConfigDescriptionURI(CHANNEL_CONFIG_DESCRIPTION_URI);
         if (tags != null && !tags.isEmpty()) {
             channelTypeBuilder.withTags(tags);
         }
@@ -86,11 +130,46 @@ public abstract class AbstractMessageHandler<S extends GeneratedMessageV3, T ext
 
         ChannelType channelType = channelTypeBuilder.build();
 
-        logger.trace("Created new channel type {}", channelType.getUID());
+        logger.trace("Created channel type {} for entity {}", channelType.getUID(), entityId);
 
         return channelType;
     }
 
+    /**
+     * @return the label made safe for a channel type id, followed by a hash of everything the channel type is built
+     *         from
+     */
+    static String channelTypeId(String label, String itemType, Collection<?> options, @Nullable String pattern,
+            @Nullable Set<String> tags, boolean readOnly, @Nullable String category, @Nullable BigDecimal step,
+            @Nullable BigDecimal min, @Nullable BigDecimal max) {
+        StringBuilder content = new StringBuilder();
+        content.append(label).append('\0').append(itemType).append('\0');
+        options.forEach(option -> content.append(option).append('\u0001'));
+        content.append('\0').append(pattern).append('\0');
+        if (tags != null) {
+            // Tags have no order
+            new TreeSet<>(tags).forEach(tag -> content.append(tag).append('\u0001'));
+        }
+        content.append('\0').append(readOnly).append('\0').append(category).append('\0').append(step)
+                .append('\0').append(min).append('\0').append(max).append('\0')
+                .append(CHANNEL_CONFIG_DESCRIPTION_URI);
+
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-256").digest(content.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java runtime has SHA-256
+            throw new IllegalStateException(e);
+        }
+        StringBuilder id = new StringBuilder();
+        String slug = label.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]+", "_");
+        id.append(slug, 0, Math.min(slug.length(), MAX_CHANNEL_TYPE_SLUG_LENGTH)).append('-');
+        for (int i = 0; i < CHANNEL_TYPE_HASH_BYTES; i++) {
+            id.append(String.format("%02x", hash[i]));
+        }
+        return id.toString();
+    }
+
     protected Configuration configuration(int key, String subCommand, String commandClass) {
         Configuration configuration = new Configuration();
         configuration.put(BindingConstants.COMMAND_KEY, key);
@@ -162,7 +241,7 @@ public abstract class AbstractMessageHandler<S extends GeneratedMessageV3, T ext
         return null;
     }
 
-    private String transformUnit(String unitOfMeasurement) {
+    static String transformUnit(String unitOfMeasurement) {
         return switch (unitOfMeasurement) {
             case "seconds" -> "s";
             default -> unitOfMeasurement;
@@ -172,6 +251,14 @@ public abstract class AbstractMessageHandler<S extends GeneratedMessageV3, T ext
     public abstract void handleState(T rsp);
 
     protected void registerChannel(@NotNull Channel channel, @NotNull ChannelType channelType) {
+        registerChannel(channel, channelType, StateConverter.DEFAULT);
+    }
+
+    /**
+     * @param converter converter for the states of the channel, created once while building the channel
+     */
+    protected void registerChannel(@NotNull Channel channel, @NotNull ChannelType channelType,
+            StateConverter converter) {
         if (logger.isDebugEnabled()) {
             logger.debug("Registering channel {} with channel type {}", channel.getUID(), channelType.getUID());
         }
@@ -180,84 +267,154 @@ public abstract class AbstractMessageHandler<S extends GeneratedMessageV3, T ext
             logger.trace("Channel type:        {}", Debug.channelTypeToString(channelType));
         }
         handler.addChannelType(channelType);
-        handler.addChannel(channel);
-    }
 
-    protected State toNumericState(Channel channel, float state, boolean missingState) {
-        if (missingState) {
-            return UnDefType.UNDEF;
-        } else {
-            Configuration configuration = channel.getConfiguration();
-            String deviceClass = (String) configuration.get("deviceClass");
-            if (deviceClass != null) {
-                SensorNumberDeviceClass sensorDeviceClass = SensorNumberDeviceClass.fromDeviceClass(deviceClass);
-                if (sensorDeviceClass != null) {
-                    if (sensorDeviceClass.getItemType().startsWith("Number")) {
-                        return toNumericState(channel, state);
-                    } else {
-                        logger.warn(
-                                "Expected SensorNumberDeviceClass '{}' to be of item type Number[:Dimension]. Returning undef",
-                                deviceClass);
-                        return UnDefType.UNDEF;
-                    }
-                } else {
-                    return toNumericState(channel, state);
+        // Keep what the user configured on the existing channel, the channel is rebuilt on every interrogation
+        Configuration configuration = new Configuration(channel.getConfiguration().getProperties());
+        Channel existingChannel = handler.getThing().getChannel(channel.getUID());
+        if (existingChannel != null) {
+            for (String parameter : USER_CONFIGURATION) {
+                Object value = existingChannel.getConfiguration().get(parameter);
+                if (value != null) {
+                    configuration.put(parameter, value);
                 }
-            } else {
-                return toNumericState(channel, state);
             }
         }
+        Map<String, String> properties = new HashMap<>(channel.getProperties());
+        properties.put(BindingConstants.CHANNEL_PROPERTY_ENTITY_TYPE, entityType);
+        channel = ChannelBuilder.create(channel).withConfiguration(configuration).withProperties(properties).build();
+        handler.addChannel(channel);
+        resolveChannel(channel, converter);
     }
 
-    private State toNumericState(Channel channel, float state) {
-
-        Configuration configuration = channel.getConfiguration();
-        String unitString = (String) configuration.get("unit");
-        if (unitString != null) {
-            /*
-             * if ("%".equals(unitString)) {
-             * // TODO PercentType does not seem to work well
-             * return new DecimalType(state);
-             * }
-             */
-            unitString = transformUnit(unitString);
-            Unit<?> unit = UnitUtils.parseUnit(unitString);
-            if (unit != null) {
-                return new QuantityType<>(state, unit);
-            } else {
-                logger.warn("Unit '{}' unknown to openHAB, returning DecimalType for state '{}' on channel '{}'",
-                        unitString, state, channel.getUID());
-                return new DecimalType(state);
+    /**
+     * Register a channel of the thing as built by an earlier interrogation of the same firmware
+     *
+     * @param channelType the channel type of the channel
+     */
+    public void restoreChannel(Channel channel, ChannelType channelType) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Restoring channel {} with channel type {}", channel.getUID(), channelType.getUID());
+        }
+        resolveChannel(channel, restoreConverter(channel, channelType));
+    }
 
-            }
+    /**
+     * Create the converter for a restored channel, from what the channel and its channel type hold. Must match the
+     * converter registered when the channel is built from the entity listing.
+     */
+    protected StateConverter restoreConverter(Channel channel, ChannelType channelType) {
+        return StateConverter.DEFAULT;
+    }
+
+    /**
+     * @return the values of the state options of the channel type
+     */
+    protected static List<String> stateOptions(ChannelType channelType) {
+        StateDescription state = channelType.getState();
+        return state == null ? List.of() : state.getOptions().stream().map(StateOption::getValue).toList();
+    }
+
+    private void resolveChannel(Channel channel, StateConverter converter) {
+        int key = ((Number) channel.getConfiguration().get(BindingConstants.COMMAND_KEY)).intValue();
+        registeredChannels.add(new ResolvedChannel(channel, key,
+                (String) channel.getConfiguration().get(BindingConstants.COMMAND_FIELD), converter));
+        Object stateWindow = channel.getConfiguration().get(BindingConstants.STATE_WINDOW);
+        handler.setStateWindow(channel.getUID(),
+                stateWindow instanceof Number number ? number.intValue() : defaultStateWindow());
+    }
+
+    /**
+     * Forget the last published values, so that the next state of every entity is published
+     */
+    public void clearLastValues() {
+        lastValues.clear();
+    }
+
+    /**
+     * Milliseconds to hold back state updates of channels of this entity type, unless configured on the channel
+     */
+    protected int defaultStateWindow() {
+        return 0;
+    }
+
+    /**
+     * Milliseconds to collect commands to an entity of this type before sending them as one, unless configured on the
+     * channel
+     */
+    protected int defaultCommandDebounce() {
+        return 0;
+    }
+
+    /**
+     * Send a command to the entity, after merging it with other commands to the same entity within the command
+     * debounce of the channel
+     *
+     * @param newCommand creates an empty command for the entity
+     * @param modification applies this command
+     */
+    protected <B extends GeneratedMessageV3.Builder<B>> void sendCommand(Channel channel, int key,
+            Supplier<B> newCommand, Consumer<B> modification) throws ProtocolAPIError {
+        Object configured = channel.getConfiguration().get(BindingConstants.COMMAND_DEBOUNCE);
+        int debounce = configured instanceof Number number ? number.intValue() : defaultCommandDebounce();
+        if (debounce <= 0) {
+            B command = newCommand.get();
+            modification.accept(command);
+            handler.sendMessage((GeneratedMessageV3) command.build());
         } else {
-            return new DecimalType(state);
+            handler.getCommandDebouncer().submit(handler, getEntityType(), key, debounce, newCommand, modification,
+                    command -> {
+                        try {
+                            logger.debug("Sending debounced command for key {}", key);
+                            handler.sendMessage((GeneratedMessageV3) command.build());
+                        } catch (ProtocolAPIError e) {
+                            logger.error("Failed to send command for key {}", key, e);
+                        }
+                    });
         }
     }
 
-    public Optional<Channel> findChannelByKey(int key) {
-        return handler.getThing().getChannels().stream()
-                .filter(e -> BigDecimal.valueOf(key).equals(e.getConfiguration().get(BindingConstants.COMMAND_KEY)))
-                .findFirst();
+    /**
+     * Index the channels registered since the last {@link #resetChannels()}, for lookup by entity key
+     */
+    public void indexChannels() {
+        IntObjectMap<ResolvedChannel> index = new IntObjectMap<>(registeredChannels.size());
+        for (ResolvedChannel resolved : registeredChannels) {
+            resolved.next = null;
+            ResolvedChannel first = index.get(resolved.getKey());
+            if (first == null) {
+                index.put(resolved.getKey(), resolved);
+            } else {
+                ResolvedChannel last = first;
+                while (last.next != null) {
+                    last = last.next;
+                }
+                last.next = resolved;
+            }
+        }
+        channelIndex = index;
     }
 
-    public Optional<Channel> findChannelByKeyAndField(int key, String field) {
-        return handler.getThing().getChannels().stream()
-                .filter(e -> BigDecimal.valueOf(key).equals(e.getConfiguration().get(BindingConstants.COMMAND_KEY))
-                        && field.equals(e.getConfiguration().get(BindingConstants.COMMAND_FIELD)))
-                .findFirst();
+    /**
+     * Forget the channels registered so far, before the device lists its entities again
+     */
+    public void resetChannels() {
+        registeredChannels.clear();
     }
 
-    public void handleMessage(GeneratedMessageV3 message) {
-        if (message.getClass().getSimpleName().startsWith("ListEntities")) {
-            buildChannels((S) message);
-        } else {
+    /**
+     * @return the first channel of the entity, other channels of the same entity follow through
+     *         {@link ResolvedChannel#getNext()}
+     */
+    public @Nullable ResolvedChannel findChannelByKey(int key) {
+        return channelIndex.get(key);
+    }
 
-            try {
-                handleState((T) message);
-            } catch (Exception e) {
-                logger.warn("Error updating OH state", e);
+    public @Nullable ResolvedChannel findChannelByKeyAndField(int key, String field) {
+        for (ResolvedChannel channel = channelIndex.get(key); channel != null; channel = channel.next) {
+            if (field.equals(channel.getField())) {
+                return channel;
             }
         }
+        return null;
     }
 }
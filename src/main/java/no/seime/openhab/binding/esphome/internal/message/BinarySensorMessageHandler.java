@@ -5,16 +5,12 @@ import java.util.HashSet;
 import java.util.Set;
 
 import org.openhab.core.config.core.Configuration;
-import org.openhab.core.library.types.OnOffType;
-import org.openhab.core.library.types.OpenClosedType;
 import org.openhab.core.thing.Channel;
 import org.openhab.core.thing.ChannelUID;
 import org.openhab.core.thing.binding.builder.ChannelBuilder;
 import org.openhab.core.thing.type.ChannelKind;
 import org.openhab.core.thing.type.ChannelType;
 import org.openhab.core.types.Command;
-import org.openhab.core.types.State;
-import org.openhab.core.types.UnDefType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,7 +25,7 @@ public class BinarySensorMessageHandler
     private final Logger logger = LoggerFactory.getLogger(BinarySensorMessageHandler.class);
 
     public BinarySensorMessageHandler(ESPHomeHandler handler) {
-        super(handler);
+        super(handler, "BinarySensor");
     }
 
     @Override
@@ -71,38 +67,20 @@ public class BinarySensorMessageHandler
                 .withLabel(rsp.getName()).withKind(ChannelKind.STATE).withType(channelType.getUID())
                 .withAcceptedItemType(binarySensorDeviceClass.getItemType()).withConfiguration(configuration).build();
 
-        super.registerChannel(channel, channelType);
+        super.registerChannel(channel, channelType,
+                StateConverter.binary("Contact".equals(binarySensorDeviceClass.getItemType())));
     }
 
-    public void handleState(BinarySensorStateResponse rsp) {
-        findChannelByKey(rsp.getKey()).ifPresent(channel -> handler.updateState(channel.getUID(),
-                toBinaryState(channel, rsp.getState(), rsp.getMissingState())));
-    }
-
-    protected State toBinaryState(Channel channel, boolean state, boolean missingState) {
-        if (missingState) {
-            return UnDefType.UNDEF;
-        }
-        return convertStateBasedOnDeviceClass((String) channel.getConfiguration().get("deviceClass"), state);
-    }
-
-    private State convertStateBasedOnDeviceClass(String deviceClass, boolean state) {
-        return isDeviceClassContact(deviceClass) ? toOpenClosedType(state) : toOnOffType(state);
+    @Override
+    protected StateConverter restoreConverter(Channel channel, ChannelType channelType) {
+        return StateConverter.binary("Contact".equals(channel.getAcceptedItemType()));
     }
 
-    private static boolean isDeviceClassContact(String deviceClass) {
-        if (deviceClass != null) {
-            BinarySensorDeviceClass binarySensorDeviceClass = BinarySensorDeviceClass.fromDeviceClass(deviceClass);
-            return binarySensorDeviceClass != null && "Contact".equals(binarySensorDeviceClass.getItemType());
+    public void handleState(BinarySensorStateResponse rsp) {
+        ResolvedChannel channel = findChannelByKey(rsp.getKey());
+        if (channel != null && lastValues.updateBoolean(rsp.getKey(), rsp.getState(), rsp.getMissingState())) {
+            handler.updateState(channel.getUID(),
+                    channel.getConverter().toBinaryState(rsp.getState(), rsp.getMissingState()));
         }
-        return false;
-    }
-
-    private static State toOpenClosedType(boolean state) {
-        return state ? OpenClosedType.OPEN : OpenClosedType.CLOSED;
-    }
-
-    private static State toOnOffType(boolean state) {
-        return state ? OnOffType.ON : OnOffType.OFF;
     }
 }
@@ -28,7 +28,7 @@ public class ButtonMessageHandler extends AbstractMessageHandler<ListEntitiesBut
     private final Logger logger = LoggerFactory.getLogger(ButtonMessageHandler.class);
 
     public ButtonMessageHandler(ESPHomeHandler handler) {
-        super(handler);
+        super(handler, "Button");
     }
 
     @Override
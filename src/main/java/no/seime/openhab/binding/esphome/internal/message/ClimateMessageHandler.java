@@ -4,30 +4,26 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
 import org.openhab.core.library.types.DecimalType;
 import org.openhab.core.library.types.QuantityType;
-import org.openhab.core.library.types.StringType;
 import org.openhab.core.thing.Channel;
 import org.openhab.core.thing.ChannelUID;
 import org.openhab.core.thing.binding.builder.ChannelBuilder;
 import org.openhab.core.thing.type.ChannelKind;
 import org.openhab.core.thing.type.ChannelType;
 import org.openhab.core.types.Command;
+import org.openhab.core.types.State;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.cache.RemovalListener;
-
 import io.esphome.api.ClimateCommandRequest;
+import io.esphome.api.ClimateFanMode;
+import io.esphome.api.ClimateMode;
+import io.esphome.api.ClimatePreset;
 import io.esphome.api.ClimateStateResponse;
+import io.esphome.api.ClimateSwingMode;
 import io.esphome.api.ListEntitiesClimateResponse;
 import no.seime.openhab.binding.esphome.internal.BindingConstants;
 import no.seime.openhab.binding.esphome.internal.EnumHelper;
@@ -47,41 +43,42 @@ public class ClimateMessageHandler extends AbstractMessageHandler<ListEntitiesCl
     public static final String SEMANTIC_TYPE_SETPOINT = "Setpoint";
     public static final String COMMAND_CLASS_CLIMATE = "Climate";
 
-    private final Logger logger = LoggerFactory.getLogger(ClimateMessageHandler.class);
+    // States of the enum channels, shared by all climate entities
+    private static final StateConverter MODE_STATES = StateConverter.enums(ClimateMode.values(),
+            EnumHelper::stripEnumPrefix);
+    private static final StateConverter FAN_MODE_STATES = StateConverter.enums(ClimateFanMode.values(),
+            EnumHelper::stripEnumPrefix);
+    private static final StateConverter PRESET_STATES = StateConverter.enums(ClimatePreset.values(),
+            EnumHelper::stripEnumPrefix);
+    private static final StateConverter SWING_MODE_STATES = StateConverter.enums(ClimateSwingMode.values(),
+            EnumHelper::stripEnumPrefix);
 
-    private final ReentrantLock lock = new ReentrantLock();
+    // Climate devices report their full state on every small change while being adjusted
+    public static final int DEFAULT_STATE_WINDOW_MILLIS = 500;
 
-    private final LoadingCache<Integer, ClimateCommandRequest.Builder> commands;
+    // Commands to the fields of a climate entity are sent together in a single request
+    public static final int DEFAULT_COMMAND_DEBOUNCE_MILLIS = 400;
 
-    private Thread expiryThread = null;
+    private final Logger logger = LoggerFactory.getLogger(ClimateMessageHandler.class);
 
     public ClimateMessageHandler(ESPHomeHandler handler) {
-        super(handler);
+        super(handler, "Climate");
+    }
 
-        commands = CacheBuilder.newBuilder().maximumSize(10).expireAfterAccess(400, TimeUnit.MILLISECONDS)
-                .removalListener((RemovalListener<Integer, ClimateCommandRequest.Builder>) notification -> {
-                    if (notification.getValue() != null) {
-                        try {
-                            logger.debug("Sending climate command for key {}", notification.getValue().getKey());
-                            handler.sendMessage(notification.getValue().build());
-                        } catch (ProtocolAPIError e) {
-                            logger.error("Failed to send climate command for key {}", notification.getValue().getKey(),
-                                    e);
-                        }
-                    }
-                }).build(new CacheLoader<>() {
-                    public ClimateCommandRequest.Builder load(Integer key) {
-                        return ClimateCommandRequest.newBuilder().setKey(key);
-                    }
-                });
+    @Override
+    protected int defaultStateWindow() {
+        return DEFAULT_STATE_WINDOW_MILLIS;
     }
 
     @Override
-    public void handleCommand(Channel channel, Command command, int key) {
-        try {
-            lock.lock();
-            ClimateCommandRequest.Builder builder = commands.get(key);
-            String subCommand = (String) channel.getConfiguration().get(BindingConstants.COMMAND_FIELD);
+    protected int defaultCommandDebounce() {
+        return DEFAULT_COMMAND_DEBOUNCE_MILLIS;
+    }
+
+    @Override
+    public void handleCommand(Channel channel, Command command, int key) throws ProtocolAPIError {
+        String subCommand = (String) channel.getConfiguration().get(BindingConstants.COMMAND_FIELD);
+        sendCommand(channel, key, () -> ClimateCommandRequest.newBuilder().setKey(key), builder -> {
             switch (subCommand) {
                 case CHANNEL_MODE -> builder.setMode(EnumHelper.toClimateMode(command.toString())).setHasMode(true);
                 case CHANNEL_TARGET_TEMPERATURE -> {
@@ -102,33 +99,7 @@ public class ClimateMessageHandler extends AbstractMessageHandler<ListEntitiesCl
                     builder.setSwingMode(EnumHelper.toClimateSwingMode(command.toString())).setHasSwingMode(true);
                 default -> logger.warn("Unknown climate subcommand {}", subCommand);
             }
-            // Start a thread that will clean up the cache (send the pending messages)
-            if (expiryThread == null || !expiryThread.isAlive()) {
-                expiryThread = new Thread(() -> {
-                    while (commands.size() > 0) {
-                        try {
-                            lock.lock();
-                            logger.debug("Calling cleanup");
-                            commands.cleanUp();
-                        } finally {
-                            lock.unlock();
-                        }
-                        try {
-                            Thread.sleep(200);
-                        } catch (InterruptedException e) {
-                            logger.error("Error sleeping", e);
-                        }
-
-                    }
-                });
-                expiryThread.start();
-            }
-
-        } catch (ExecutionException e) {
-            logger.error("Error buffering climate command", e);
-        } finally {
-            lock.unlock();
-        }
+        });
     }
 
     private ChannelUID createChannelUID(String componentName, String channelName) {
@@ -159,7 +130,8 @@ public class ClimateMessageHandler extends AbstractMessageHandler<ListEntitiesCl
                 .withType(channelTypeTargetTemperature.getUID()).withAcceptedItemType(itemTypeTemperature)
                 .withConfiguration(configuration(rsp.getKey(), CHANNEL_TARGET_TEMPERATURE, COMMAND_CLASS_CLIMATE))
                 .build();
-        super.registerChannel(channelTargetTemperature, channelTypeTargetTemperature);
+        super.registerChannel(channelTargetTemperature, channelTypeTargetTemperature,
+                StateConverter.numeric(channelTargetTemperature.getConfiguration()));
 
         if (rsp.getSupportsCurrentTemperature()) {
             ChannelType channelType = addChannelType(rsp.getUniqueId() + CHANNEL_CURRENT_TEMPERATURE,
@@ -176,7 +148,7 @@ public class ClimateMessageHandler extends AbstractMessageHandler<ListEntitiesCl
                     .withLabel(createLabel(rsp.getName(), "Current temperature")).withKind(ChannelKind.STATE)
                     .withType(channelType.getUID()).withAcceptedItemType(itemTypeTemperature)
                     .withConfiguration(configuration(rsp.getKey(), CHANNEL_CURRENT_TEMPERATURE, null)).build();
-            super.registerChannel(channel, channelType);
+            super.registerChannel(channel, channelType, StateConverter.numeric(channel.getConfiguration()));
         }
 
         String itemTypeString = "String";
@@ -189,7 +161,7 @@ public class ClimateMessageHandler extends AbstractMessageHandler<ListEntitiesCl
                     .withLabel(createLabel(rsp.getName(), "Mode")).withKind(ChannelKind.STATE)
                     .withType(channelType.getUID()).withAcceptedItemType(itemTypeString)
                     .withConfiguration(configuration(rsp.getKey(), CHANNEL_MODE, COMMAND_CLASS_CLIMATE)).build();
-            super.registerChannel(channel, channelType);
+            super.registerChannel(channel, channelType, MODE_STATES);
         }
         if (rsp.getSupportedFanModesCount() > 0) {
             ChannelType channelType = addChannelType(rsp.getUniqueId() + CHANNEL_FAN_MODE, "Fan Mode", itemTypeString,
@@ -201,7 +173,7 @@ public class ClimateMessageHandler extends AbstractMessageHandler<ListEntitiesCl
                     .withLabel(createLabel(rsp.getName(), "Fan Mode")).withKind(ChannelKind.STATE)
                     .withType(channelType.getUID()).withAcceptedItemType(itemTypeString)
                     .withConfiguration(configuration(rsp.getKey(), CHANNEL_FAN_MODE, COMMAND_CLASS_CLIMATE)).build();
-            super.registerChannel(channel, channelType);
+            super.registerChannel(channel, channelType, FAN_MODE_STATES);
         }
         if (rsp.getSupportedCustomFanModesCount() > 0) {
             ChannelType channelType = addChannelType(rsp.getUniqueId() + CHANNEL_CUSTOM_FAN_MODE, "Custom Fan Mode",
@@ -213,7 +185,8 @@ public class ClimateMessageHandler extends AbstractMessageHandler<ListEntitiesCl
                     .withType(channelType.getUID()).withAcceptedItemType(itemTypeString)
                     .withConfiguration(configuration(rsp.getKey(), CHANNEL_CUSTOM_FAN_MODE, COMMAND_CLASS_CLIMATE))
                     .build();
-            super.registerChannel(channel, channelType);
+            super.registerChannel(channel, channelType,
+                    StateConverter.strings(rsp.getSupportedCustomFanModesList()));
         }
         if (rsp.getSupportedPresetsCount() > 0) {
             ChannelType channelType = addChannelType(rsp.getUniqueId() + CHANNEL_PRESET, "Preset", itemTypeString,
@@ -224,7 +197,7 @@ public class ClimateMessageHandler extends AbstractMessageHandler<ListEntitiesCl
                     .withLabel(createLabel(rsp.getName(), "Preset")).withKind(ChannelKind.STATE)
                     .withType(channelType.getUID()).withAcceptedItemType(itemTypeString)
                     .withConfiguration(configuration(rsp.getKey(), CHANNEL_PRESET, COMMAND_CLASS_CLIMATE)).build();
-            super.registerChannel(channel, channelType);
+            super.registerChannel(channel, channelType, PRESET_STATES);
         }
         if (rsp.getSupportedCustomPresetsCount() > 0) {
             ChannelType channelType = addChannelType(rsp.getUniqueId() + CHANNEL_CUSTOM_PRESET, "Custom Preset",
@@ -235,7 +208,7 @@ public class ClimateMessageHandler extends AbstractMessageHandler<ListEntitiesCl
                     .withType(channelType.getUID()).withAcceptedItemType(itemTypeString)
                     .withConfiguration(configuration(rsp.getKey(), CHANNEL_CUSTOM_PRESET, COMMAND_CLASS_CLIMATE))
                     .build();
-            super.registerChannel(channel, channelType);
+            super.registerChannel(channel, channelType, StateConverter.strings(rsp.getSupportedCustomPresetsList()));
         }
         if (rsp.getSupportedSwingModesCount() > 0) {
             ChannelType channelType = addChannelType(rsp.getUniqueId() + CHANNEL_SWING_MODE, "Swing Mode",
@@ -247,29 +220,47 @@ public class ClimateMessageHandler extends AbstractMessageHandler<ListEntitiesCl
                     .withAcceptedItemType(itemTypeString).withLabel(createLabel(rsp.getName(), "Swing Mode"))
                     .withKind(ChannelKind.STATE).withType(channelType.getUID())
                     .withConfiguration(configuration(rsp.getKey(), CHANNEL_SWING_MODE, COMMAND_CLASS_CLIMATE)).build();
-            super.registerChannel(channel, channelType);
+            super.registerChannel(channel, channelType, SWING_MODE_STATES);
         }
     }
 
-    public void handleState(ClimateStateResponse rsp) {
-        findChannelByKeyAndField(rsp.getKey(), CHANNEL_TARGET_TEMPERATURE)
-                .ifPresent(channel -> handler.updateState(channel.getUID(),
-                        toNumericState(channel, rsp.getTargetTemperature(), Float.isNaN(rsp.getTargetTemperature()))));
-        findChannelByKeyAndField(rsp.getKey(), CHANNEL_CURRENT_TEMPERATURE).ifPresent(channel -> handler.updateState(
-                channel.getUID(),
-                toNumericState(channel, rsp.getCurrentTemperature(), Float.isNaN(rsp.getCurrentTemperature()))));
-        findChannelByKeyAndField(rsp.getKey(), CHANNEL_MODE).ifPresent(channel -> handler.updateState(channel.getUID(),
-                new StringType(EnumHelper.stripEnumPrefix(rsp.getMode()))));
-        findChannelByKeyAndField(rsp.getKey(), CHANNEL_FAN_MODE).ifPresent(channel -> handler
-                .updateState(channel.getUID(), new StringType(EnumHelper.stripEnumPrefix(rsp.getFanMode()))));
-        findChannelByKeyAndField(rsp.getKey(), CHANNEL_CUSTOM_FAN_MODE)
-                .ifPresent(channel -> handler.updateState(channel.getUID(), new StringType(rsp.getCustomFanMode())));
+    @Override
+    protected StateConverter restoreConverter(Channel channel, ChannelType channelType) {
+        String field = (String) channel.getConfiguration().get(BindingConstants.COMMAND_FIELD);
+        return switch (field == null ? "" : field) {
+            case CHANNEL_MODE -> MODE_STATES;
+            case CHANNEL_FAN_MODE -> FAN_MODE_STATES;
+            case CHANNEL_PRESET -> PRESET_STATES;
+            case CHANNEL_SWING_MODE -> SWING_MODE_STATES;
+            case CHANNEL_CUSTOM_FAN_MODE, CHANNEL_CUSTOM_PRESET -> StateConverter.strings(stateOptions(channelType));
+            default -> StateConverter.numeric(channel.getConfiguration());
+        };
+    }
 
-        findChannelByKeyAndField(rsp.getKey(), CHANNEL_PRESET).ifPresent(channel -> handler
-                .updateState(channel.getUID(), new StringType(EnumHelper.stripEnumPrefix(rsp.getPreset()))));
-        findChannelByKeyAndField(rsp.getKey(), CHANNEL_CUSTOM_PRESET)
-                .ifPresent(channel -> handler.updateState(channel.getUID(), new StringType(rsp.getCustomPreset())));
-        findChannelByKeyAndField(rsp.getKey(), CHANNEL_SWING_MODE).ifPresent(channel -> handler
-                .updateState(channel.getUID(), new StringType(EnumHelper.stripEnumPrefix(rsp.getSwingMode()))));
+    public void handleState(ClimateStateResponse rsp) {
+        // One lookup for the entity, then a pass over its channels
+        for (ResolvedChannel channel = findChannelByKey(rsp.getKey()); channel != null; channel = channel.getNext()) {
+            String field = channel.getField();
+            if (field == null) {
+                continue;
+            }
+            StateConverter converter = channel.getConverter();
+            State state = switch (field) {
+                case CHANNEL_TARGET_TEMPERATURE -> converter.toNumericState(rsp.getTargetTemperature(),
+                        Float.isNaN(rsp.getTargetTemperature()));
+                case CHANNEL_CURRENT_TEMPERATURE -> converter.toNumericState(rsp.getCurrentTemperature(),
+                        Float.isNaN(rsp.getCurrentTemperature()));
+                case CHANNEL_MODE -> converter.toEnumState(rsp.getMode());
+                case CHANNEL_FAN_MODE -> converter.toEnumState(rsp.getFanMode());
+                case CHANNEL_CUSTOM_FAN_MODE -> converter.toStringState(rsp.getCustomFanMode(), false);
+                case CHANNEL_PRESET -> converter.toEnumState(rsp.getPreset());
+                case CHANNEL_CUSTOM_PRESET -> converter.toStringState(rsp.getCustomPreset(), false);
+                case CHANNEL_SWING_MODE -> converter.toEnumState(rsp.getSwingMode());
+                default -> null;
+            };
+            if (state != null) {
+                handler.updateState(channel.getUID(), state);
+            }
+        }
     }
 }
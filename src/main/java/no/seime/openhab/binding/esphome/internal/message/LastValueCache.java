@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.message;
+
+import java.math.BigDecimal;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.openhab.core.thing.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import no.seime.openhab.binding.esphome.internal.BindingConstants;
+import no.seime.openhab.binding.esphome.internal.util.IntObjectMap;
+
+/**
+ * Last published value of each entity, by entity key, used to suppress updates that would not change the channel
+ * state. Numeric values may also be held back while within the deadband configured on the channel.
+ * <p>
+ * Not thread safe, updates are made from the serial packet executor of the device.
+ *
+ * @author Arne Seime - Initial contribution
+ */
+@NonNullByDefault
+public class LastValueCache {
+
+    private final Logger logger = LoggerFactory.getLogger(LastValueCache.class);
+
+    private IntObjectMap<Slot> slots = new IntObjectMap<>();
+
+    /**
+     * @return true if the value should be published, in which case it is remembered as the last value
+     */
+    public boolean updateFloat(int key, Channel channel, float value, boolean missing) {
+        Slot slot = slots.get(key);
+        if (slot == null) {
+            slot = newSlot(channel);
+            slots.put(key, slot);
+        } else if (slot.hasValue && missing == slot.missing
+                && (missing || !slot.outsideDeadband(slot.floatValue, value))) {
+            return false;
+        }
+        slot.hasValue = true;
+        slot.missing = missing;
+        slot.floatValue = value;
+        return true;
+    }
+
+    /**
+     * @return true if the value should be published, in which case it is remembered as the last value
+     */
+    public boolean updateBoolean(int key, boolean value, boolean missing) {
+        Slot slot = slots.get(key);
+        if (slot == null) {
+            slot = new Slot(0, 0);
+            slots.put(key, slot);
+        }
+        if (slot.hasValue && missing == slot.missing && (missing || value == slot.booleanValue)) {
+            return false;
+        }
+        slot.hasValue = true;
+        slot.missing = missing;
+        slot.booleanValue = value;
+        return true;
+    }
+
+    /**
+     * Forget all values, so that the next update of every entity is published
+     */
+    public void clear() {
+        // Replaced rather than emptied, so that clearing on dispose cannot corrupt the map an update is using
+        slots = new IntObjectMap<>();
+    }
+
+    private Slot newSlot(Channel channel) {
+        Object deadband = channel.getConfiguration().get(BindingConstants.DEADBAND);
+        if (deadband == null) {
+            return new Slot(0, 0);
+        }
+        String text = deadband.toString().trim();
+        try {
+            if (text.endsWith("%")) {
+                float percent = new BigDecimal(text.substring(0, text.length() - 1).trim()).floatValue();
+                return new Slot(0, percent / 100);
+            }
+            return new Slot(new BigDecimal(text).floatValue(), 0);
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid deadband '{}' on channel {}, expected a number or a percentage like '2%'", text,
+                    channel.getUID());
+            return new Slot(0, 0);
+        }
+    }
+
+    private static class Slot {
+        private final float absoluteDeadband;
+        private final float relativeDeadband;
+
+        private boolean hasValue;
+        private boolean missing;
+        private float floatValue;
+        private boolean booleanValue;
+
+        private Slot(float absoluteDeadband, float relativeDeadband) {
+            this.absoluteDeadband = absoluteDeadband;
+            this.relativeDeadband = relativeDeadband;
+        }
+
+        private boolean outsideDeadband(float last, float value) {
+            if (Float.floatToIntBits(last) == Float.floatToIntBits(value)) {
+                return false;
+            }
+            // NaN and infinities always differ
+            float difference = Math.abs(value - last);
+            if (!Float.isFinite(difference)) {
+                return true;
+            }
+            return difference > absoluteDeadband && difference > Math.abs(last) * relativeDeadband;
+        }
+    }
+}
@@ -23,7 +23,7 @@ public class LightMessageHandler extends AbstractMessageHandler<ListEntitiesLigh
     private final Logger logger = LoggerFactory.getLogger(LightMessageHandler.class);
 
     public LightMessageHandler(ESPHomeHandler handler) {
-        super(handler);
+        super(handler, "Light");
     }
 
     @Override
@@ -25,8 +25,16 @@ import no.seime.openhab.binding.esphome.internal.handler.ESPHomeHandler;
 
 public class NumberMessageHandler extends AbstractMessageHandler<ListEntitiesNumberResponse, NumberStateResponse> {
 
+    // Short, as the device echoes the new value after every command
+    public static final int DEFAULT_STATE_WINDOW_MILLIS = 100;
+
     public NumberMessageHandler(ESPHomeHandler handler) {
-        super(handler);
+        super(handler, "Number");
+    }
+
+    @Override
+    protected int defaultStateWindow() {
+        return DEFAULT_STATE_WINDOW_MILLIS;
     }
 
     private final Logger logger = LoggerFactory.getLogger(NumberMessageHandler.class);
@@ -40,7 +48,9 @@ public class NumberMessageHandler extends AbstractMessageHandler<ListEntitiesNum
             value = ((QuantityType<?>) command).floatValue();
         }
         if (value != null) {
-            handler.sendMessage(NumberCommandRequest.newBuilder().setKey(key).setState(value).build());
+            float state = value;
+            sendCommand(channel, key, () -> NumberCommandRequest.newBuilder().setKey(key),
+                    builder -> builder.setState(state));
         } else {
             logger.warn("Cannot send command to number channel {}, invalid type {}", channel.getUID(),
                     command.getClass().getSimpleName());
@@ -83,12 +93,21 @@ public class NumberMessageHandler extends AbstractMessageHandler<ListEntitiesNum
         Channel channel = ChannelBuilder.create(new ChannelUID(handler.getThing().getUID(), rsp.getObjectId()))
                 .withLabel(rsp.getName()).withKind(ChannelKind.STATE).withType(channelType.getUID())
                 .withAcceptedItemType(itemType).withConfiguration(configuration).build();
-        super.registerChannel(channel, channelType);
+        super.registerChannel(channel, channelType, StateConverter.numeric(configuration));
+    }
+
+    @Override
+    protected StateConverter restoreConverter(Channel channel, ChannelType channelType) {
+        return StateConverter.numeric(channel.getConfiguration());
     }
 
     @Override
     public void handleState(NumberStateResponse rsp) {
-        findChannelByKey(rsp.getKey()).ifPresent(channel -> handler.updateState(channel.getUID(),
-                toNumericState(channel, rsp.getState(), rsp.getMissingState())));
+        ResolvedChannel channel = findChannelByKey(rsp.getKey());
+        if (channel != null
+                && lastValues.updateFloat(rsp.getKey(), channel.getChannel(), rsp.getState(), rsp.getMissingState())) {
+            handler.updateState(channel.getUID(),
+                    channel.getConverter().toNumericState(rsp.getState(), rsp.getMissingState()));
+        }
     }
 }
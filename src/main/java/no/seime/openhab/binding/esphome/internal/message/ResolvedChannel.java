@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.message;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.core.thing.Channel;
+import org.openhab.core.thing.ChannelUID;
+
+/**
+ * A channel with the entity key and sub-field it represents, and the converter for its states, all resolved once when
+ * the channel is built. Channels sharing an entity key, like the fields of a climate entity, are linked through
+ * {@link #getNext()}.
+ *
+ * @author Arne Seime - Initial contribution
+ */
+@NonNullByDefault
+public class ResolvedChannel {
+
+    private final Channel channel;
+    private final int key;
+    private final @Nullable String field;
+    private final StateConverter converter;
+
+    @Nullable
+    ResolvedChannel next;
+
+    ResolvedChannel(Channel channel, int key, @Nullable String field, StateConverter converter) {
+        this.channel = channel;
+        this.key = key;
+        this.field = field;
+        this.converter = converter;
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    public ChannelUID getUID() {
+        return channel.getUID();
+    }
+
+    public int getKey() {
+        return key;
+    }
+
+    public @Nullable String getField() {
+        return field;
+    }
+
+    public StateConverter getConverter() {
+        return converter;
+    }
+
+    /**
+     * @return the next channel with the same entity key, if any
+     */
+    public @Nullable ResolvedChannel getNext() {
+        return next;
+    }
+}
@@ -3,14 +3,12 @@ package no.seime.openhab.binding.esphome.internal.message;
 import java.util.ArrayList;
 import java.util.Set;
 
-import org.openhab.core.library.types.StringType;
 import org.openhab.core.thing.Channel;
 import org.openhab.core.thing.ChannelUID;
 import org.openhab.core.thing.binding.builder.ChannelBuilder;
 import org.openhab.core.thing.type.ChannelKind;
 import org.openhab.core.thing.type.ChannelType;
 import org.openhab.core.types.Command;
-import org.openhab.core.types.UnDefType;
 
 import io.esphome.api.ListEntitiesSelectResponse;
 import io.esphome.api.SelectCommandRequest;
@@ -21,12 +19,13 @@ import no.seime.openhab.binding.esphome.internal.handler.ESPHomeHandler;
 public class SelectMessageHandler extends AbstractMessageHandler<ListEntitiesSelectResponse, SelectStateResponse> {
 
     public SelectMessageHandler(ESPHomeHandler handler) {
-        super(handler);
+        super(handler, "Select");
     }
 
     @Override
     public void handleCommand(Channel channel, Command command, int key) throws ProtocolAPIError {
-        handler.sendMessage(SelectCommandRequest.newBuilder().setKey(key).setState(command.toString()).build());
+        sendCommand(channel, key, () -> SelectCommandRequest.newBuilder().setKey(key),
+                builder -> builder.setState(command.toString()));
     }
 
     public void buildChannels(ListEntitiesSelectResponse rsp) {
@@ -38,12 +37,20 @@ public class SelectMessageHandler extends AbstractMessageHandler<ListEntitiesSel
                 .withLabel(rsp.getName()).withKind(ChannelKind.STATE).withType(channelType.getUID())
                 .withAcceptedItemType(itemType).withConfiguration(configuration(rsp.getKey(), null, "Select")).build();
 
-        super.registerChannel(channel, channelType);
+        super.registerChannel(channel, channelType, StateConverter.strings(rsp.getOptionsList()));
+    }
+
+    @Override
+    protected StateConverter restoreConverter(Channel channel, ChannelType channelType) {
+        return StateConverter.strings(stateOptions(channelType));
     }
 
     @Override
     public void handleState(SelectStateResponse rsp) {
-        findChannelByKey(rsp.getKey()).ifPresent(channel -> handler.updateState(channel.getUID(),
-                rsp.getMissingState() ? UnDefType.UNDEF : new StringType(rsp.getState())));
+        ResolvedChannel channel = findChannelByKey(rsp.getKey());
+        if (channel != null) {
+            handler.updateState(channel.getUID(),
+                    channel.getConverter().toStringState(rsp.getState(), rsp.getMissingState()));
+        }
     }
 }
@@ -22,10 +22,18 @@ import no.seime.openhab.binding.esphome.internal.handler.ESPHomeHandler;
 
 public class SensorMessageHandler extends AbstractMessageHandler<ListEntitiesSensorResponse, SensorStateResponse> {
 
+    // Fast sensors like power meters and ADCs may report many times a second
+    public static final int DEFAULT_STATE_WINDOW_MILLIS = 250;
+
     private final Logger logger = LoggerFactory.getLogger(SensorMessageHandler.class);
 
     public SensorMessageHandler(ESPHomeHandler handler) {
-        super(handler);
+        super(handler, "Sensor");
+    }
+
+    @Override
+    protected int defaultStateWindow() {
+        return DEFAULT_STATE_WINDOW_MILLIS;
     }
 
     @Override
@@ -67,12 +75,21 @@ public class SensorMessageHandler extends AbstractMessageHandler<ListEntitiesSen
         Channel channel = ChannelBuilder.create(new ChannelUID(handler.getThing().getUID(), rsp.getObjectId()))
                 .withLabel(rsp.getName()).withKind(ChannelKind.STATE).withType(channelType.getUID())
                 .withAcceptedItemType(itemType).withConfiguration(configuration).build();
-        super.registerChannel(channel, channelType);
+        super.registerChannel(channel, channelType, StateConverter.numeric(configuration));
+    }
+
+    @Override
+    protected StateConverter restoreConverter(Channel channel, ChannelType channelType) {
+        return StateConverter.numeric(channel.getConfiguration());
     }
 
     @Override
     public void handleState(SensorStateResponse rsp) {
-        findChannelByKey(rsp.getKey()).ifPresent(channel -> handler.updateState(channel.getUID(),
-                toNumericState(channel, rsp.getState(), rsp.getMissingState())));
+        ResolvedChannel channel = findChannelByKey(rsp.getKey());
+        if (channel != null
+                && lastValues.updateFloat(rsp.getKey(), channel.getChannel(), rsp.getState(), rsp.getMissingState())) {
+            handler.updateState(channel.getUID(),
+                    channel.getConverter().toNumericState(rsp.getState(), rsp.getMissingState()));
+        }
     }
 }
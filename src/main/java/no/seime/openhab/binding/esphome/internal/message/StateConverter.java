@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.message;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import javax.measure.Unit;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.core.config.core.Configuration;
+import org.openhab.core.library.types.DecimalType;
+import org.openhab.core.library.types.OnOffType;
+import org.openhab.core.library.types.OpenClosedType;
+import org.openhab.core.library.types.QuantityType;
+import org.openhab.core.library.types.StringType;
+import org.openhab.core.types.State;
+import org.openhab.core.types.UnDefType;
+import org.openhab.core.types.util.UnitUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts values received from the device to the state of one channel. Everything that depends only on the channel,
+ * like units, device classes and the states of known string values, is resolved when the converter is created, so
+ * converting a value neither parses nor searches.
+ *
+ * @author Arne Seime - Initial contribution
+ */
+@NonNullByDefault
+public class StateConverter {
+
+    /**
+     * Converter for channels without anything to resolve, like free text
+     */
+    public static final StateConverter DEFAULT = new StateConverter(true, null, OnOffType.ON, OnOffType.OFF,
+            Map.of(), new StringType[0]);
+
+    private static final Logger logger = LoggerFactory.getLogger(StateConverter.class);
+
+    private final boolean numeric;
+    private final @Nullable Unit<?> unit;
+    private final State trueState;
+    private final State falseState;
+    private final Map<String, StringType> stringStates;
+    private final @Nullable StringType[] enumStates;
+
+    private StateConverter(boolean numeric, @Nullable Unit<?> unit, State trueState, State falseState,
+            Map<String, StringType> stringStates, @Nullable StringType[] enumStates) {
+        this.numeric = numeric;
+        this.unit = unit;
+        this.trueState = trueState;
+        this.falseState = falseState;
+        this.stringStates = stringStates;
+        this.enumStates = enumStates;
+    }
+
+    /**
+     * Converter for numeric values, using the unit and device class of the channel configuration
+     */
+    public static StateConverter numeric(Configuration configuration) {
+        boolean numeric = true;
+        String deviceClass = (String) configuration.get("deviceClass");
+        if (deviceClass != null) {
+            SensorNumberDeviceClass sensorDeviceClass = SensorNumberDeviceClass.fromDeviceClass(deviceClass);
+            if (sensorDeviceClass != null && !sensorDeviceClass.getItemType().startsWith("Number")) {
+                logger.warn("Expected SensorNumberDeviceClass '{}' to be of item type Number[:Dimension]. Using undef",
+                        deviceClass);
+                numeric = false;
+            }
+        }
+
+        Unit<?> unit = null;
+        String unitString = (String) configuration.get("unit");
+        if (unitString != null) {
+            unitString = AbstractMessageHandler.transformUnit(unitString);
+            unit = UnitUtils.parseUnit(unitString);
+            if (unit == null) {
+                logger.warn("Unit '{}' unknown to openHAB, states will be plain numbers", unitString);
+            }
+        }
+        return new StateConverter(numeric, unit, OnOffType.ON, OnOffType.OFF, Map.of(), new StringType[0]);
+    }
+
+    /**
+     * Converter for boolean values, to OPEN/CLOSED for contacts and ON/OFF otherwise
+     */
+    public static StateConverter binary(boolean contact) {
+        return contact
+                ? new StateConverter(false, null, OpenClosedType.OPEN, OpenClosedType.CLOSED, Map.of(),
+                        new StringType[0])
+                : new StateConverter(false, null, OnOffType.ON, OnOffType.OFF, Map.of(), new StringType[0]);
+    }
+
+    /**
+     * Converter for string values, sharing one state instance for each of the known values
+     */
+    public static StateConverter strings(Collection<String> knownValues) {
+        Map<String, StringType> states = new HashMap<>();
+        knownValues.forEach(value -> states.put(value, new StringType(value)));
+        return new StateConverter(false, null, OnOffType.ON, OnOffType.OFF, states, new StringType[0]);
+    }
+
+    /**
+     * Converter for enum values, sharing one state instance for each constant
+     *
+     * @param naming the state value of a constant
+     */
+    public static <E extends Enum<E>> StateConverter enums(E[] constants, Function<E, String> naming) {
+        @Nullable
+        StringType[] states = new StringType[constants.length];
+        for (E constant : constants) {
+            // Skips protobuf's UNRECOGNIZED, which has no name on the device
+            if (!"UNRECOGNIZED".equals(constant.name())) {
+                states[constant.ordinal()] = new StringType(naming.apply(constant));
+            }
+        }
+        return new StateConverter(false, null, OnOffType.ON, OnOffType.OFF, Map.of(), states);
+    }
+
+    public State toNumericState(float value, boolean missing) {
+        if (missing || !numeric) {
+            return UnDefType.UNDEF;
+        }
+        Unit<?> unit = this.unit;
+        return unit != null ? new QuantityType<>(value, unit) : new DecimalType(value);
+    }
+
+    public State toBinaryState(boolean value, boolean missing) {
+        if (missing) {
+            return UnDefType.UNDEF;
+        }
+        return value ? trueState : falseState;
+    }
+
+    public State toStringState(String value, boolean missing) {
+        if (missing) {
+            return UnDefType.UNDEF;
+        }
+        StringType state = stringStates.get(value);
+        return state != null ? state : new StringType(value);
+    }
+
+    public State toEnumState(Enum<?> value) {
+        StringType state = value.ordinal() < enumStates.length ? enumStates[value.ordinal()] : null;
+        return state != null ? state : UnDefType.UNDEF;
+    }
+}
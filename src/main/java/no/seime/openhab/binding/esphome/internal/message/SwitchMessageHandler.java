@@ -21,12 +21,13 @@ import no.seime.openhab.binding.esphome.internal.handler.ESPHomeHandler;
 public class SwitchMessageHandler extends AbstractMessageHandler<ListEntitiesSwitchResponse, SwitchStateResponse> {
 
     public SwitchMessageHandler(ESPHomeHandler handler) {
-        super(handler);
+        super(handler, "Switch");
     }
 
     @Override
     public void handleCommand(Channel channel, Command command, int key) throws ProtocolAPIError {
-        handler.sendMessage(SwitchCommandRequest.newBuilder().setKey(key).setState(command == OnOffType.ON).build());
+        sendCommand(channel, key, () -> SwitchCommandRequest.newBuilder().setKey(key),
+                builder -> builder.setState(command == OnOffType.ON));
     }
 
     public void buildChannels(ListEntitiesSwitchResponse rsp) {
@@ -43,7 +44,9 @@ public class SwitchMessageHandler extends AbstractMessageHandler<ListEntitiesSwi
     }
 
     public void handleState(SwitchStateResponse rsp) {
-        findChannelByKey(rsp.getKey()).ifPresent(
-                channel -> handler.updateState(channel.getUID(), rsp.getState() ? OnOffType.ON : OnOffType.OFF));
+        ResolvedChannel channel = findChannelByKey(rsp.getKey());
+        if (channel != null && lastValues.updateBoolean(rsp.getKey(), rsp.getState(), false)) {
+            handler.updateState(channel.getUID(), rsp.getState() ? OnOffType.ON : OnOffType.OFF);
+        }
     }
 }
@@ -24,7 +24,7 @@ public class TextSensorMessageHandler
         extends AbstractMessageHandler<ListEntitiesTextSensorResponse, TextSensorStateResponse> {
 
     public TextSensorMessageHandler(ESPHomeHandler handler) {
-        super(handler);
+        super(handler, "TextSensor");
     }
 
     @Override
@@ -49,8 +49,10 @@ public class TextSensorMessageHandler
 
     @Override
     public void handleState(TextSensorStateResponse rsp) {
-        findChannelByKey(rsp.getKey()).ifPresent(
-                channel -> handler.updateState(channel.getUID(), toTextState(rsp.getState(), rsp.getMissingState())));
+        ResolvedChannel channel = findChannelByKey(rsp.getKey());
+        if (channel != null) {
+            handler.updateState(channel.getUID(), toTextState(rsp.getState(), rsp.getMissingState()));
+        }
     }
 
     protected State toTextState(String state, boolean missingState) {
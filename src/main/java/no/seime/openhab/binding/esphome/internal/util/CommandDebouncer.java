@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces commands to the same entity of a device, for all devices of the binding. Entities are identified by their
+ * type and key, as entities of different types may share a key. The first command to an entity
+ * creates a pending command and schedules it to be sent after the flush delay. Commands arriving until then modify
+ * the pending command, so that a burst like dragging a slider results in a single command with the last value.
+ * <p>
+ * All pending commands share a single timer thread, which only builds and hands over the command.
+ *
+ * @author Arne Seime - Initial contribution
+ */
+public class CommandDebouncer {
+
+    private final Logger logger = LoggerFactory.getLogger(CommandDebouncer.class);
+
+    private final ScheduledThreadPoolExecutor timer;
+
+    private final Map<EntityKey, PendingCommand<?>> pending = new ConcurrentHashMap<>();
+
+    public CommandDebouncer() {
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "ESPHome Command Debouncer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Add a command to the pending command of the entity, creating and scheduling it if there is none
+     *
+     * @param device the device the entity belongs to
+     * @param entityType type of the entity, determining the type of command
+     * @param key entity key
+     * @param delayMillis delay before sending, only used when no command is pending for the entity
+     * @param newCommand creates an empty command for the entity
+     * @param modification applies the command to the pending command
+     * @param sender sends the pending command when the delay has passed
+     */
+    @SuppressWarnings("unchecked")
+    public <B> void submit(Object device, String entityType, int key, long delayMillis, Supplier<B> newCommand,
+            Consumer<B> modification, Consumer<B> sender) {
+        EntityKey entityKey = new EntityKey(device, entityType, key);
+        pending.compute(entityKey, (k, existing) -> {
+            PendingCommand<B> command = (PendingCommand<B>) existing;
+            if (command == null) {
+                command = new PendingCommand<>(newCommand.get(), sender);
+                timer.schedule(() -> flush(k), delayMillis, TimeUnit.MILLISECONDS);
+            }
+            modification.accept(command.builder);
+            return command;
+        });
+    }
+
+    /**
+     * Drop the pending commands of a device
+     */
+    public void cancel(Object device) {
+        pending.keySet().removeIf(entityKey -> entityKey.device == device);
+    }
+
+    public void stop() {
+        timer.shutdownNow();
+        pending.clear();
+    }
+
+    private void flush(EntityKey entityKey) {
+        // Removed before sending, so that commands arriving meanwhile start a new pending command
+        PendingCommand<?> command = pending.remove(entityKey);
+        if (command != null) {
+            try {
+                command.send();
+            } catch (RuntimeException e) {
+                logger.warn("Failed to send {} command for key {}", entityKey.entityType, entityKey.key, e);
+            }
+        }
+    }
+
+    private record EntityKey(Object device, String entityType, int key) {
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof EntityKey other && device == other.device && key == other.key
+                    && entityType.equals(other.entityType);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * System.identityHashCode(device) + entityType.hashCode()) + key;
+        }
+    }
+
+    private static class PendingCommand<B> {
+        private final B builder;
+        private final Consumer<B> sender;
+
+        PendingCommand(B builder, Consumer<B> sender) {
+            this.builder = builder;
+            this.sender = sender;
+        }
+
+        void send() {
+            sender.accept(builder);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared pool for handling device messages off the selector threads. Each device gets its own
+ * {@link SerialExecutor}, so messages from one device are handled in order while devices run in parallel.
+ * <p>
+ * Uses virtual threads when the runtime has them (Java 21+), and a bounded pool of platform threads otherwise.
+ *
+ * @author Arne Seime - Initial contribution
+ */
+public class DeviceExecutors {
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final Logger logger = LoggerFactory.getLogger(DeviceExecutors.class);
+
+    private final ExecutorService pool;
+
+    public DeviceExecutors() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param maxPlatformThreads size of the pool when virtual threads are not available
+     */
+    public DeviceExecutors(int maxPlatformThreads) {
+        ExecutorService virtualThreadPool = newVirtualThreadPool();
+        if (virtualThreadPool != null) {
+            logger.debug("Handling device messages on virtual threads");
+            pool = virtualThreadPool;
+        } else {
+            int threads = Math.max(1, maxPlatformThreads);
+            logger.debug("Handling device messages on up to {} platform threads", threads);
+            ThreadPoolExecutor platformPool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new HandlerThreadFactory());
+            platformPool.allowCoreThreadTimeOut(true);
+            pool = platformPool;
+        }
+    }
+
+    /**
+     * Create a serial executor for a single device
+     */
+    public SerialExecutor newSerialExecutor() {
+        return new SerialExecutor(pool);
+    }
+
+    public void stop() {
+        pool.shutdown();
+    }
+
+    private ExecutorService newVirtualThreadPool() {
+        try {
+            // Looked up reflectively as the binding is compiled for Java 17
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Preview feature not enabled on Java 19/20, or similar
+            logger.debug("Virtual threads not available: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static class HandlerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ESPHome Handler " + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
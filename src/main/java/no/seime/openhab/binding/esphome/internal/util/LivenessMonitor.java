@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the connections of all devices of the binding from a single hashed timer wheel.
+ * <p>
+ * A connection is only looked at when its deadline comes up, which is when it would become idle given the time it
+ * last received anything. A connection that received data in the meantime is just moved to its new deadline, so
+ * busy connections are never pinged. An idle connection is pinged every idle time, and declared dead once nothing
+ * was received for the dead time.
+ *
+ * @author Arne Seime - Initial contribution
+ */
+public class LivenessMonitor {
+
+    public static final long DEFAULT_TICK_MILLIS = 250;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * A watched connection. Callbacks are made from the timer thread and should return quickly.
+     */
+    public interface Target {
+        /**
+         * @return {@link System#nanoTime()} when data was last received
+         */
+        long lastReceiveNanos();
+
+        /**
+         * Nothing received for the idle time, called again every idle time until something is received
+         */
+        void onIdle();
+
+        /**
+         * Nothing received for the dead time, the target is no longer watched
+         */
+        void onDead();
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(LivenessMonitor.class);
+
+    private final long tickNanos;
+    private final List<Watch>[] wheel;
+    private final long startNanos = System.nanoTime();
+    private final ScheduledThreadPoolExecutor timer;
+
+    // Last tick processed, only advanced by the timer thread
+    private long processedTick;
+
+    public LivenessMonitor() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    @SuppressWarnings("unchecked")
+    public LivenessMonitor(long tickMillis, int wheelSize) {
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        wheel = new List[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "ESPHome Liveness Monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start watching a connection
+     *
+     * @param idleMillis time without receiving anything before {@link Target#onIdle()}
+     * @param deadMillis time without receiving anything before {@link Target#onDead()}
+     */
+    public Watch watch(Target target, long idleMillis, long deadMillis) {
+        Watch watch = new Watch(target, TimeUnit.MILLISECONDS.toNanos(idleMillis),
+                TimeUnit.MILLISECONDS.toNanos(deadMillis));
+        schedule(watch, target.lastReceiveNanos() + Math.min(watch.idleNanos, watch.deadNanos));
+        return watch;
+    }
+
+    public void stop() {
+        timer.shutdownNow();
+    }
+
+    private synchronized void schedule(Watch watch, long deadlineNanos) {
+        // Rounded up, and never into a tick already processed
+        watch.deadlineTick = Math.max(processedTick + 1, (deadlineNanos - startNanos + tickNanos - 1) / tickNanos);
+        wheel[(int) (watch.deadlineTick % wheel.length)].add(watch);
+    }
+
+    private void advance() {
+        long currentTick = (System.nanoTime() - startNanos) / tickNanos;
+        while (processedTick < currentTick) {
+            List<Watch> due = new ArrayList<>();
+            synchronized (this) {
+                processedTick++;
+                List<Watch> bucket = wheel[(int) (processedTick % wheel.length)];
+                // Entries for later rounds of the wheel stay in the bucket
+                bucket.removeIf(watch -> {
+                    if (watch.cancelled) {
+                        return true;
+                    } else if (watch.deadlineTick <= processedTick) {
+                        due.add(watch);
+                        return true;
+                    }
+                    return false;
+                });
+            }
+            for (Watch watch : due) {
+                try {
+                    check(watch);
+                } catch (RuntimeException e) {
+                    logger.warn("Error checking connection liveness", e);
+                }
+            }
+        }
+    }
+
+    private void check(Watch watch) {
+        if (watch.cancelled) {
+            return;
+        }
+        long now = System.nanoTime();
+        long lastReceive = watch.target.lastReceiveNanos();
+        long silence = now - lastReceive;
+        if (silence >= watch.deadNanos) {
+            watch.cancelled = true;
+            watch.target.onDead();
+        } else if (silence >= watch.idleNanos) {
+            watch.target.onIdle();
+            schedule(watch, Math.min(now + watch.idleNanos, lastReceive + watch.deadNanos));
+        } else {
+            schedule(watch, lastReceive + Math.min(watch.idleNanos, watch.deadNanos));
+        }
+    }
+
+    public static class Watch {
+        private final Target target;
+        private final long idleNanos;
+        private final long deadNanos;
+        private volatile boolean cancelled;
+        private long deadlineTick;
+
+        private Watch(Target target, long idleNanos, long deadNanos) {
+            this.target = target;
+            this.idleNanos = idleNanos;
+            this.deadNanos = deadNanos;
+        }
+
+        /**
+         * Stop watching, no callbacks are made after this returns unless one is already in progress
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
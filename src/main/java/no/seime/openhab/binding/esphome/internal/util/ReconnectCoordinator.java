@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.util;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schedules connection attempts for all devices of the binding, so that a fleet of devices losing their connection
+ * at the same time does not reconnect in lockstep.
+ * <p>
+ * Attempts are delayed with exponential backoff and jitter. Once the delay has passed, a device waits for one of a
+ * limited number of permits, and keeps it until its handshake and interrogation is complete, see
+ * {@link #release(Object)}. Devices that were recently healthy are admitted before the others.
+ *
+ * @author Arne Seime - Initial contribution
+ */
+public class ReconnectCoordinator {
+
+    public static final int DEFAULT_MAX_CONCURRENT_CONNECTS = 16;
+    public static final long DEFAULT_MAX_PERMIT_MILLIS = 60_000;
+
+    // Spreads the first connect of all devices after startup
+    static final long INITIAL_JITTER_MILLIS = 1000;
+    static final long BASE_DELAY_MILLIS = 5000;
+    static final long MAX_DELAY_MILLIS = 300_000;
+
+    private final Logger logger = LoggerFactory.getLogger(ReconnectCoordinator.class);
+
+    private final ScheduledThreadPoolExecutor timer;
+    private int maxConcurrentConnects;
+    private final long maxPermitMillis;
+
+    // Devices waiting for their backoff delay, waiting for a permit, and holding a permit
+    private final Map<Object, Attempt> delayed = new HashMap<>();
+    private final PriorityQueue<Attempt> waiting = new PriorityQueue<>(
+            Comparator.comparing((Attempt attempt) -> !attempt.preferred).thenComparingLong(attempt -> attempt.order));
+    private final Map<Object, Attempt> admitted = new HashMap<>();
+    private long order;
+
+    public ReconnectCoordinator() {
+        this(DEFAULT_MAX_CONCURRENT_CONNECTS, DEFAULT_MAX_PERMIT_MILLIS);
+    }
+
+    /**
+     * @param maxConcurrentConnects number of devices connecting and being interrogated at the same time
+     * @param maxPermitMillis time after which a permit is taken back from a device that did not release it
+     */
+    public ReconnectCoordinator(int maxConcurrentConnects, long maxPermitMillis) {
+        this.maxConcurrentConnects = Math.max(1, maxConcurrentConnects);
+        this.maxPermitMillis = maxPermitMillis;
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "ESPHome Reconnect Coordinator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Schedule a connection attempt, replacing any attempt already scheduled for the device and releasing its permit
+     *
+     * @param device the device to connect
+     * @param attempt number of failed attempts since the device was last connected, 0 for the first attempt
+     * @param preferred whether the device is admitted before devices that are not
+     * @param connect starts connecting, run once the device is admitted
+     * @return the backoff delay in milliseconds, not counting the wait for a permit
+     */
+    public synchronized long schedule(Object device, int attempt, boolean preferred, Runnable connect) {
+        cancel(device);
+        long delay = delayMillis(attempt, ThreadLocalRandom.current());
+        Attempt next = new Attempt(device, preferred, connect);
+        next.timeout = timer.schedule(() -> enqueue(next), delay, TimeUnit.MILLISECONDS);
+        delayed.put(device, next);
+        return delay;
+    }
+
+    /**
+     * Return the permit of the device, once it is connected and interrogated or has given up
+     */
+    public synchronized void release(Object device) {
+        Attempt attempt = admitted.remove(device);
+        if (attempt != null) {
+            attempt.timeout.cancel(false);
+            admit();
+        }
+    }
+
+    /**
+     * Drop any scheduled attempt of the device and return its permit
+     */
+    public synchronized void cancel(Object device) {
+        Attempt pending = delayed.remove(device);
+        if (pending != null) {
+            pending.timeout.cancel(false);
+        }
+        waiting.removeIf(attempt -> attempt.device == device);
+        release(device);
+    }
+
+    /**
+     * Change the number of permits. With more permits, waiting devices are admitted right away, with fewer, devices
+     * holding a permit keep it and no device is admitted until enough permits are returned.
+     */
+    public synchronized void setMaxConcurrentConnects(int maxConcurrentConnects) {
+        this.maxConcurrentConnects = Math.max(1, maxConcurrentConnects);
+        admit();
+    }
+
+    public void stop() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Exponential backoff with jitter, the delay is between half and all of the backoff for the attempt
+     */
+    static long delayMillis(int attempt, Random random) {
+        if (attempt <= 0) {
+            return random.nextLong(INITIAL_JITTER_MILLIS + 1);
+        }
+        long backoff = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(attempt - 1, 20));
+        return backoff / 2 + random.nextLong(backoff / 2 + 1);
+    }
+
+    private synchronized void enqueue(Attempt attempt) {
+        // Unless cancelled or replaced while the timer was firing
+        if (delayed.remove(attempt.device, attempt)) {
+            attempt.order = order++;
+            waiting.add(attempt);
+            admit();
+        }
+    }
+
+    private void admit() {
+        while (admitted.size() < maxConcurrentConnects && !waiting.isEmpty()) {
+            Attempt attempt = waiting.poll();
+            attempt.timeout = timer.schedule(() -> expire(attempt), maxPermitMillis, TimeUnit.MILLISECONDS);
+            admitted.put(attempt.device, attempt);
+            timer.execute(attempt.connect);
+        }
+        if (!waiting.isEmpty()) {
+            logger.debug("{} devices waiting to connect", waiting.size());
+        }
+    }
+
+    private synchronized void expire(Attempt attempt) {
+        if (admitted.get(attempt.device) == attempt) {
+            logger.debug("Taking back connect permit not released within {} ms", maxPermitMillis);
+            release(attempt.device);
+        }
+    }
+
+    private static class Attempt {
+        private final Object device;
+        private final boolean preferred;
+        private final Runnable connect;
+        private long order;
+        // Backoff delay while delayed, permit expiry while admitted
+        private ScheduledFuture<?> timeout;
+
+        Attempt(Object device, boolean preferred, Runnable connect) {
+            this.device = device;
+            this.preferred = preferred;
+            this.connect = connect;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks one at a time and in submission order on a shared pool. At most one pool thread drains the queue at any
+ * time, and it hands the queue back to the pool after a batch of tasks so that a busy device cannot hold on to a
+ * thread other devices are waiting for.
+ *
+ * @author Arne Seime - Initial contribution
+ */
+public class SerialExecutor implements Executor {
+
+    /**
+     * Number of tasks run before the queue is resubmitted to the pool
+     */
+    static final int MAX_TASKS_PER_RUN = 64;
+
+    private final Logger logger = LoggerFactory.getLogger(SerialExecutor.class);
+
+    private final Executor pool;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    public SerialExecutor(Executor pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+            try {
+                pool.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // Pool shut down, nothing will ever run the remaining tasks
+                logger.debug("Discarding {} tasks, executor pool is shut down", tasks.size());
+                tasks.clear();
+                scheduled.set(false);
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+            for (int i = 0; i < MAX_TASKS_PER_RUN && (task = tasks.poll()) != null; i++) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.warn("Uncaught error in task", e);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            // Tasks added while draining, or left over after a full batch
+            schedule();
+        }
+    }
+}
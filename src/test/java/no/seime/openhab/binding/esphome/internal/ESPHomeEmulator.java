@@ -7,6 +7,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -15,8 +16,10 @@ import org.slf4j.LoggerFactory;
 
 import com.google.protobuf.GeneratedMessageV3;
 
+import no.seime.openhab.binding.esphome.internal.comm.EncryptedDeviceStreamHandler;
 import no.seime.openhab.binding.esphome.internal.comm.PlainTextStreamHandler;
 import no.seime.openhab.binding.esphome.internal.comm.ProtocolException;
+import no.seime.openhab.binding.esphome.internal.comm.StreamHandler;
 
 public class ESPHomeEmulator {
 
@@ -36,15 +39,29 @@ public class ESPHomeEmulator {
 
     private SocketChannel channel;
 
-    private PlainTextStreamHandler streamHandler;
+    private StreamHandler streamHandler;
+
+    private final String encryptionKey;
 
     public ESPHomeEmulator(InetSocketAddress listenAddress) {
+        this(listenAddress, null);
+    }
+
+    /**
+     * @param encryptionKey base64 encoded API encryption key, or null to emulate a plaintext device
+     */
+    public ESPHomeEmulator(InetSocketAddress listenAddress, String encryptionKey) {
         this.listenAddress = listenAddress;
+        this.encryptionKey = encryptionKey;
     }
 
-    public void start() {
+    public void start() throws ProtocolException, GeneralSecurityException {
 
-        streamHandler = new PlainTextStreamHandler(packetListener);
+        if (encryptionKey != null) {
+            streamHandler = new EncryptedDeviceStreamHandler(packetListener, encryptionKey, this::write);
+        } else {
+            streamHandler = new PlainTextStreamHandler(packetListener);
+        }
 
         Thread serverThread = new Thread(() -> {
             try {
@@ -111,7 +128,15 @@ public class ESPHomeEmulator {
     }
 
     public void sendPacket(GeneratedMessageV3 message) throws IOException {
-        ByteBuffer buffer = ByteBuffer.wrap(streamHandler.encodeFrame(message));
+        try {
+            write(streamHandler.encodeFrame(message));
+        } catch (ProtocolException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void write(byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
 
         while (buffer.hasRemaining()) {
             logger.trace("Writing data");
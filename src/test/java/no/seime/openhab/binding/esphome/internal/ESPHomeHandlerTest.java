@@ -2,12 +2,26 @@ package no.seime.openhab.binding.esphome.internal;
 
 import static org.awaitility.Awaitility.await;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.File;
-import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -20,11 +34,17 @@ import org.openhab.core.config.core.Configuration;
 import org.openhab.core.thing.Thing;
 import org.openhab.core.thing.binding.ThingHandlerCallback;
 import org.openhab.core.thing.internal.ThingImpl;
+import org.openhab.core.thing.type.ChannelType;
+import org.openhab.core.thing.type.ChannelTypeUID;
 
 import no.seime.openhab.binding.esphome.internal.comm.ConnectionSelector;
 import no.seime.openhab.binding.esphome.internal.comm.LogReadingPacketListener;
 import no.seime.openhab.binding.esphome.internal.handler.ESPChannelTypeProvider;
 import no.seime.openhab.binding.esphome.internal.handler.ESPHomeHandler;
+import no.seime.openhab.binding.esphome.internal.util.CommandDebouncer;
+import no.seime.openhab.binding.esphome.internal.util.DeviceExecutors;
+import no.seime.openhab.binding.esphome.internal.util.LivenessMonitor;
+import no.seime.openhab.binding.esphome.internal.util.ReconnectCoordinator;
 
 /**
  *
@@ -47,6 +67,16 @@ class ESPHomeHandlerTest {
 
     ConnectionSelector selector;
 
+    DeviceExecutors deviceExecutors;
+
+    Executor packetExecutor;
+
+    CommandDebouncer commandDebouncer;
+
+    ReconnectCoordinator reconnectCoordinator;
+
+    LivenessMonitor livenessMonitor;
+
     @BeforeEach
     public void setUp() throws Exception {
 
@@ -57,9 +87,15 @@ class ESPHomeHandlerTest {
 
         selector = new ConnectionSelector();
         selector.start();
+        deviceExecutors = new DeviceExecutors();
+        commandDebouncer = new CommandDebouncer();
+        reconnectCoordinator = Mockito.spy(new ReconnectCoordinator());
+        livenessMonitor = new LivenessMonitor();
 
         thing = createThing();
-        deviceHandler = Mockito.spy(new ESPHomeHandler(thing, selector, channelTypeProvider));
+        packetExecutor = deviceExecutors.newSerialExecutor();
+        deviceHandler = Mockito.spy(new ESPHomeHandler(thing, selector, packetExecutor, commandDebouncer,
+                reconnectCoordinator, livenessMonitor, channelTypeProvider));
         thingHandlerCallback = Mockito.mock(ThingHandlerCallback.class);
         deviceHandler.setCallback(thingHandlerCallback);
     }
@@ -68,11 +104,14 @@ class ESPHomeHandlerTest {
     public void shutdown() {
         selector.stop();
         deviceHandler.dispose();
+        deviceExecutors.stop();
+        commandDebouncer.stop();
+        reconnectCoordinator.stop();
+        livenessMonitor.stop();
     }
 
     @Test
-    void testInitializeEverythingPresenceSensor()
-            throws IOException, InvocationTargetException, IllegalAccessException {
+    void testInitializeEverythingPresenceSensor() throws Exception {
 
         ESPHomeEmulator emulator = new ESPHomeEmulator(new InetSocketAddress("localhost", 10000));
         emulator.setPacketListener(
@@ -85,6 +124,103 @@ class ESPHomeHandlerTest {
         assertEquals(18, deviceHandler.getDynamicChannels().size());
     }
 
+    @Test
+    void testInitializeEverythingPresenceSensorEncrypted() throws Exception {
+        deviceConfiguration.port = 10001;
+        deviceConfiguration.encryptionKey = "px7tsbK3C7bpXHr2OevEV2ZMg/FrNBw2+O2pNPbedtA=";
+
+        ESPHomeEmulator emulator = new ESPHomeEmulator(new InetSocketAddress("localhost", 10001),
+                deviceConfiguration.encryptionKey);
+        emulator.setPacketListener(
+                new LogReadingPacketListener(emulator, new File("src/test/resources/logfiles/presence_sensor.log")));
+        emulator.start();
+
+        deviceHandler.initialize();
+
+        await().until(() -> deviceHandler.isInterrogated());
+        assertEquals(18, deviceHandler.getDynamicChannels().size());
+        emulator.stop();
+    }
+
+    @Test
+    void testNoReconnectAfterDispose() throws Exception {
+        deviceConfiguration.port = 10002;
+
+        ESPHomeEmulator emulator = new ESPHomeEmulator(new InetSocketAddress("localhost", 10002));
+        emulator.setPacketListener(
+                new LogReadingPacketListener(emulator, new File("src/test/resources/logfiles/presence_sensor.log")));
+        emulator.start();
+
+        deviceHandler.initialize();
+        await().until(() -> deviceHandler.isInterrogated());
+
+        clearInvocations(reconnectCoordinator);
+        deviceHandler.dispose();
+        // The device closing its end of the connection
+        deviceHandler.onEndOfStream();
+
+        // Handled by the serial executor in order, so the end of stream has been handled once this has run
+        CountDownLatch handled = new CountDownLatch(1);
+        packetExecutor.execute(handled::countDown);
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+
+        verify(reconnectCoordinator, never()).schedule(any(), anyInt(), anyBoolean(), any());
+        emulator.stop();
+    }
+
+    @Test
+    void testReconnectAfterReinitialize() throws Exception {
+        deviceConfiguration.port = 10004;
+
+        try (ServerSocket device = new ServerSocket()) {
+            device.bind(new InetSocketAddress("localhost", 10004));
+            device.setSoTimeout(5000);
+
+            deviceHandler.initialize();
+            device.accept().close();
+
+            // As on a configuration change, the framework disposes and initializes the same handler
+            deviceHandler.dispose();
+            deviceHandler.initialize();
+            device.accept().close();
+        }
+    }
+
+    @Test
+    void testRestoreChannelsOfInterrogatedFirmware() throws Exception {
+        deviceConfiguration.port = 10003;
+        // Channel types as committed by the interrogation
+        Map<ChannelTypeUID, ChannelType> channelTypes = new ConcurrentHashMap<>();
+        doAnswer(invocation -> {
+            Collection<ChannelType> committed = invocation.getArgument(1);
+            committed.forEach(channelType -> channelTypes.put(channelType.getUID(), channelType));
+            return null;
+        }).when(channelTypeProvider).putChannelTypes(any(), any());
+        when(channelTypeProvider.getChannelType(any(), any()))
+                .thenAnswer(invocation -> channelTypes.get(invocation.getArgument(0)));
+
+        ESPHomeEmulator emulator = new ESPHomeEmulator(new InetSocketAddress("localhost", 10003));
+        emulator.setPacketListener(
+                new LogReadingPacketListener(emulator, new File("src/test/resources/logfiles/presence_sensor.log")));
+        emulator.start();
+
+        deviceHandler.initialize();
+        await().until(() -> deviceHandler.isInterrogated());
+        Thing interrogatedThing = deviceHandler.getThing();
+        assertNotNull(interrogatedThing.getProperties().get(BindingConstants.PROPERTY_INTERROGATED_FIRMWARE));
+
+        // As after a restart, the channels are ready before connecting
+        ESPHomeHandler restartedHandler = new ESPHomeHandler(interrogatedThing, selector, packetExecutor,
+                commandDebouncer, reconnectCoordinator, livenessMonitor, channelTypeProvider);
+        restartedHandler.setCallback(thingHandlerCallback);
+        restartedHandler.initialize();
+        assertTrue(restartedHandler.isInterrogated());
+        assertEquals(18, restartedHandler.getDynamicChannels().size());
+
+        restartedHandler.dispose();
+        emulator.stop();
+    }
+
     private ThingImpl createThing() {
         ThingImpl thing = new ThingImpl(BindingConstants.THING_TYPE_DEVICE, "device");
 
@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.comm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.GeneratedMessageV3;
+
+import no.seime.openhab.binding.esphome.internal.PacketListener;
+
+/**
+ * Device side of the encrypted transport, the Noise responder, for emulating encrypted ESPHome devices in tests
+ *
+ * @author Arne Seime - Initial contribution
+ */
+public class EncryptedDeviceStreamHandler implements StreamHandler {
+
+    public interface FrameWriter {
+        void write(byte[] data) throws ProtocolException, IOException;
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final PacketListener listener;
+    private final FrameWriter writer;
+    private final NoiseHandshake handshake;
+    private NoiseCipherState sendCipher;
+    private NoiseCipherState receiveCipher;
+    private boolean helloReceived;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(EncryptedStreamHandler.HEADER_SIZE
+            + EncryptedStreamHandler.MAX_FRAME_SIZE);
+
+    public EncryptedDeviceStreamHandler(PacketListener listener, String encryptionKey, FrameWriter writer)
+            throws ProtocolAPIError, GeneralSecurityException {
+        this.listener = listener;
+        this.writer = writer;
+        handshake = new NoiseHandshake(false, EncryptedStreamHandler.PROLOGUE,
+                EncryptedStreamHandler.decodeKey(encryptionKey));
+    }
+
+    @Override
+    public boolean isHandshakeComplete() {
+        return receiveCipher != null;
+    }
+
+    @Override
+    public void processReceivedData(ByteBuffer data) throws ProtocolException, IOException {
+        data.flip();
+        buffer.put(data);
+        buffer.flip();
+        while (buffer.remaining() >= EncryptedStreamHandler.HEADER_SIZE) {
+            int frameStart = buffer.position();
+            if (buffer.get(frameStart) != EncryptedStreamHandler.PREAMBLE) {
+                throw new ProtocolAPIError("Invalid preamble");
+            }
+            int frameSize = buffer.getShort(frameStart + 1) & 0xFFFF;
+            if (buffer.remaining() < EncryptedStreamHandler.HEADER_SIZE + frameSize) {
+                break;
+            }
+            handleFrame(Arrays.copyOfRange(buffer.array(), frameStart + EncryptedStreamHandler.HEADER_SIZE,
+                    frameStart + EncryptedStreamHandler.HEADER_SIZE + frameSize));
+            buffer.position(frameStart + EncryptedStreamHandler.HEADER_SIZE + frameSize);
+        }
+        buffer.compact();
+    }
+
+    private void handleFrame(byte[] frame) throws ProtocolException, IOException {
+        if (!helloReceived) {
+            helloReceived = true;
+        } else if (receiveCipher == null) {
+            handleHandshake(frame);
+        } else {
+            try {
+                int length = receiveCipher.decrypt(EMPTY, frame, 0, frame.length, frame, 0);
+                int messageType = ((frame[0] & 0xFF) << 8) | (frame[1] & 0xFF);
+                int messageLength = ((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF);
+                if (messageLength > length - EncryptedStreamHandler.DATA_HEADER_SIZE) {
+                    throw new ProtocolAPIError("Invalid message length");
+                }
+                GeneratedMessageV3 message = MessageCodec.parse(messageType,
+                        CodedInputStream.newInstance(frame, EncryptedStreamHandler.DATA_HEADER_SIZE, messageLength));
+                if (message != null) {
+                    listener.onPacket(messageType, message);
+                }
+            } catch (GeneralSecurityException e) {
+                throw new ProtocolAPIError("Error decrypting frame", e);
+            }
+        }
+    }
+
+    private void handleHandshake(byte[] frame) throws ProtocolException, IOException {
+        byte[] serverName = "emulator\0".getBytes(StandardCharsets.US_ASCII);
+        byte[] hello = new byte[1 + serverName.length];
+        hello[0] = 0x01;
+        System.arraycopy(serverName, 0, hello, 1, serverName.length);
+        writer.write(frame(hello));
+
+        try {
+            handshake.readMessage(frame, 1, frame.length - 1);
+            byte[] message = handshake.writeMessage();
+            byte[] response = new byte[message.length + 1];
+            System.arraycopy(message, 0, response, 1, message.length);
+            NoiseCipherState[] ciphers = handshake.split();
+            sendCipher = ciphers[0];
+            receiveCipher = ciphers[1];
+            writer.write(frame(response));
+        } catch (GeneralSecurityException e) {
+            // Same response as a device when the client uses the wrong key
+            byte[] reason = "Handshake MAC failure".getBytes(StandardCharsets.US_ASCII);
+            byte[] response = new byte[reason.length + 1];
+            response[0] = 0x01;
+            System.arraycopy(reason, 0, response, 1, reason.length);
+            writer.write(frame(response));
+            throw new ProtocolAPIError("Handshake failed", e);
+        }
+    }
+
+    private static byte[] frame(byte[] data) {
+        return ByteBuffer.allocate(EncryptedStreamHandler.HEADER_SIZE + data.length)
+                .put((byte) EncryptedStreamHandler.PREAMBLE).putShort((short) data.length).put(data).array();
+    }
+
+    @Override
+    public byte[] encodeFrame(GeneratedMessageV3 message) throws ProtocolException {
+        int messageType = MessageCodec.messageId(message);
+        byte[] messageBytes = message.toByteArray();
+        byte[] data = new byte[EncryptedStreamHandler.DATA_HEADER_SIZE + messageBytes.length
+                + NoiseCipherState.TAG_LENGTH];
+        ByteBuffer.wrap(data).putShort((short) messageType).putShort((short) messageBytes.length).put(messageBytes);
+        try {
+            sendCipher.encrypt(EMPTY, data, 0, data.length - NoiseCipherState.TAG_LENGTH, data, 0);
+        } catch (GeneralSecurityException e) {
+            throw new ProtocolAPIError("Error encrypting frame", e);
+        }
+        return frame(data);
+    }
+
+    @Override
+    public ByteBuffer encodeFrame(GeneratedMessageV3 message, ByteBuffer header) throws ProtocolException {
+        byte[] frame = encodeFrame(message);
+        header.put(frame, 0, EncryptedStreamHandler.HEADER_SIZE);
+        return ByteBuffer.wrap(frame, EncryptedStreamHandler.HEADER_SIZE,
+                frame.length - EncryptedStreamHandler.HEADER_SIZE);
+    }
+
+    @Override
+    public void endOfStream() {
+        listener.onEndOfStream();
+    }
+
+    @Override
+    public void onParseError(Exception e) {
+        listener.onParseError();
+    }
+}
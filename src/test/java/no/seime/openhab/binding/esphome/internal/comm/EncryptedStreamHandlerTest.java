@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.comm;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.protobuf.GeneratedMessageV3;
+
+import io.esphome.api.HelloRequest;
+import io.esphome.api.HelloResponse;
+import io.esphome.api.PingRequest;
+import no.seime.openhab.binding.esphome.internal.ESPHomeEmulator;
+import no.seime.openhab.binding.esphome.internal.PacketListener;
+
+public class EncryptedStreamHandlerTest {
+
+    private static final String KEY = "px7tsbK3C7bpXHr2OevEV2ZMg/FrNBw2+O2pNPbedtA=";
+    private static final String OTHER_KEY = "2tLb5VAqCnTyVAuI9ItuFIWBmCA1P3CgIxnHjFoR9OY=";
+
+    private final List<GeneratedMessageV3> clientReceived = new CopyOnWriteArrayList<>();
+    private final List<GeneratedMessageV3> deviceReceived = new CopyOnWriteArrayList<>();
+
+    @Test
+    void testHandshakeAndMessages() throws Exception {
+        EncryptedStreamHandler client = new EncryptedStreamHandler(collectingListener(clientReceived), KEY);
+        EncryptedDeviceStreamHandler device = new EncryptedDeviceStreamHandler(collectingListener(deviceReceived),
+                KEY, data -> feed(client, data));
+
+        assertFalse(client.isHandshakeComplete());
+        ByteBuffer handshake = client.onConnected();
+        byte[] handshakeData = new byte[handshake.remaining()];
+        handshake.get(handshakeData);
+        feed(device, handshakeData);
+        assertTrue(client.isHandshakeComplete());
+
+        HelloRequest helloRequest = HelloRequest.newBuilder().setClientInfo("openHAB").setApiVersionMajor(1)
+                .setApiVersionMinor(7).build();
+        feed(device, client.encodeFrame(helloRequest));
+        feed(device, client.encodeFrame(PingRequest.getDefaultInstance()));
+        assertEquals(List.of(helloRequest, PingRequest.getDefaultInstance()), deviceReceived);
+
+        // Coalesced frames delivered one byte at a time
+        HelloResponse helloResponse = HelloResponse.newBuilder().setApiVersionMajor(1).setApiVersionMinor(7)
+                .setServerInfo("ESPHome ".repeat(40)).build();
+        byte[] first = device.encodeFrame(helloResponse);
+        byte[] second = device.encodeFrame(PingRequest.getDefaultInstance());
+        byte[] both = new byte[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        for (byte b : both) {
+            feed(client, new byte[] { b });
+        }
+        assertEquals(List.of(helloResponse, PingRequest.getDefaultInstance()), clientReceived);
+    }
+
+    @Test
+    void testConnectionOverSocket() throws Exception {
+        InetSocketAddress serverAddress = new InetSocketAddress("localhost", new Random().nextInt(10000) + 20000);
+        ESPHomeEmulator espHomeDevice = new ESPHomeEmulator(serverAddress, KEY);
+        espHomeDevice.setPacketListener(new PacketListener() {
+            @Override
+            public void onPacket(int messageType, GeneratedMessageV3 message) throws IOException {
+                deviceReceived.add(message);
+                espHomeDevice.sendPacket(HelloResponse.newBuilder().setApiVersionMajor(1).setApiVersionMinor(7)
+                        .setServerInfo("ESPHome 1.7.3").build());
+            }
+
+            @Override
+            public void onEndOfStream() {
+                fail();
+            }
+
+            @Override
+            public void onParseError() {
+                fail();
+            }
+        });
+        ConnectionSelector connectionSelector = new ConnectionSelector();
+        try {
+            espHomeDevice.start();
+            await().until(espHomeDevice::isReady);
+            connectionSelector.start();
+
+            ESPHomeConnection connection = new ESPHomeConnection(connectionSelector,
+                    new EncryptedStreamHandler(collectingListener(clientReceived), KEY), "localhost");
+            connection.connect(serverAddress);
+            // Held back until the handshake has completed
+            connection.send(HelloRequest.newBuilder().setClientInfo("openHAB").build());
+
+            await().until(() -> !clientReceived.isEmpty());
+            assertEquals(1, deviceReceived.size());
+            assertTrue(clientReceived.get(0) instanceof HelloResponse);
+        } finally {
+            espHomeDevice.stop();
+            connectionSelector.stop();
+        }
+    }
+
+    @Test
+    void testWrongKey() throws Exception {
+        EncryptedStreamHandler client = new EncryptedStreamHandler(collectingListener(clientReceived), KEY);
+        List<byte[]> deviceResponses = new ArrayList<>();
+        EncryptedDeviceStreamHandler device = new EncryptedDeviceStreamHandler(collectingListener(deviceReceived),
+                OTHER_KEY, deviceResponses::add);
+
+        ByteBuffer handshake = client.onConnected();
+        byte[] handshakeData = new byte[handshake.remaining()];
+        handshake.get(handshakeData);
+        assertThrows(ProtocolAPIError.class, () -> feed(device, handshakeData));
+
+        feed(client, deviceResponses.get(0));
+        assertThrows(ProtocolAPIError.class, () -> feed(client, deviceResponses.get(1)));
+        assertFalse(client.isHandshakeComplete());
+    }
+
+    @Test
+    void testRejectFrameAboveLimit() throws Exception {
+        EncryptedStreamHandler client = new EncryptedStreamHandler(collectingListener(clientReceived), KEY, 1024);
+
+        // Header of a 4096 byte frame, rejected before the frame is received
+        assertThrows(ProtocolAPIError.class, () -> feed(client, new byte[] { 0x01, 0x10, 0x00 }));
+    }
+
+    @Test
+    void testInvalidKey() {
+        assertThrows(ProtocolAPIError.class, () -> EncryptedStreamHandler.decodeKey("not base64!"));
+        assertThrows(ProtocolAPIError.class, () -> EncryptedStreamHandler.decodeKey("c2hvcnQ="));
+    }
+
+    private static void feed(StreamHandler streamHandler, byte[] data) throws ProtocolException, IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(data.length);
+        buffer.put(data);
+        streamHandler.processReceivedData(buffer);
+    }
+
+    private static PacketListener collectingListener(List<GeneratedMessageV3> received) {
+        return new PacketListener() {
+            @Override
+            public void onPacket(int messageType, GeneratedMessageV3 message) {
+                received.add(message);
+            }
+
+            @Override
+            public void onEndOfStream() {
+                fail();
+            }
+
+            @Override
+            public void onParseError() {
+                fail();
+            }
+        };
+    }
+}
@@ -4,21 +4,18 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.GeneratedMessageV3;
+import com.google.protobuf.InvalidProtocolBufferException;
 
 public class LogParser {
 
-    private MessageTypeToClassConverter messageTypeToClassConverter = new MessageTypeToClassConverter();
-
-    public List<GeneratedMessageV3> parseLog(File log)
-            throws IOException, InvocationTargetException, IllegalAccessException {
+    public List<GeneratedMessageV3> parseLog(File log) throws IOException {
         List<GeneratedMessageV3> messages = new ArrayList<>();
 
         FileReader reader = new FileReader(log);
@@ -45,18 +42,8 @@ public class LogParser {
     }
 
     private GeneratedMessageV3 parseMessage(String messageType, String messageData)
-            throws InvocationTargetException, IllegalAccessException {
-        Integer type = Integer.parseInt(messageType);
-        Method parseMethod = messageTypeToClassConverter.getMethod(type);
-
-        if (parseMethod != null) {
-            GeneratedMessageV3 invoke = (GeneratedMessageV3) parseMethod.invoke(null, fromString(messageData));
-            if (invoke != null) {
-                return invoke;
-
-            }
-        }
-        return null;
+            throws InvalidProtocolBufferException {
+        return MessageCodec.parse(Integer.parseInt(messageType), CodedInputStream.newInstance(fromString(messageData)));
     }
 
     private static byte[] fromString(String string) {
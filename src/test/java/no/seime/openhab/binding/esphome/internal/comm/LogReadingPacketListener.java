@@ -41,7 +41,7 @@ public class LogReadingPacketListener implements PacketListener {
     }
 
     @Override
-    public void onPacket(GeneratedMessageV3 message) throws IOException {
+    public void onPacket(int messageType, GeneratedMessageV3 message) throws IOException {
         if (message instanceof HelloRequest) {
             emulator.sendPacket(responseMessages.stream().filter(e -> e instanceof HelloResponse).findFirst().get());
         } else if (message instanceof DeviceInfoRequest) {
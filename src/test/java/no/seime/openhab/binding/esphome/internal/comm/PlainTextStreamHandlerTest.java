@@ -13,11 +13,16 @@
 package no.seime.openhab.binding.esphome.internal.comm;
 
 import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 import org.junit.jupiter.api.Test;
@@ -26,6 +31,7 @@ import com.google.protobuf.GeneratedMessageV3;
 
 import io.esphome.api.HelloRequest;
 import io.esphome.api.HelloResponse;
+import io.esphome.api.PingRequest;
 import no.seime.openhab.binding.esphome.internal.ESPHomeEmulator;
 import no.seime.openhab.binding.esphome.internal.PacketListener;
 
@@ -48,7 +54,7 @@ public class PlainTextStreamHandlerTest {
         espHomeDevice = new ESPHomeEmulator(serverAddress);
         espHomeDevice.setPacketListener(new PacketListener() {
             @Override
-            public void onPacket(GeneratedMessageV3 message) throws IOException {
+            public void onPacket(int messageType, GeneratedMessageV3 message) throws IOException {
                 System.out.println("Received packet: " + message);
 
                 // Respond with hello response
@@ -79,7 +85,7 @@ public class PlainTextStreamHandlerTest {
             ESPHomeConnection clientConnection = new ESPHomeConnection(connectionSelector,
                     new PlainTextStreamHandler(new PacketListener() {
                         @Override
-                        public void onPacket(GeneratedMessageV3 message) {
+                        public void onPacket(int messageType, GeneratedMessageV3 message) {
                             System.out.println("Received packet: " + message);
                             assertTrue(message instanceof HelloResponse);
                             responseReceived = true;
@@ -112,4 +118,116 @@ public class PlainTextStreamHandlerTest {
             connectionSelector.stop();
         }
     }
+
+    @Test
+    void testDecodeFragmentedAndCoalescedFrames() throws Exception {
+        List<GeneratedMessageV3> received = new ArrayList<>();
+        PlainTextStreamHandler streamHandler = collectingStreamHandler(received);
+
+        // Long enough to need a multi byte length varint
+        HelloResponse helloResponse = HelloResponse.newBuilder().setApiVersionMajor(1).setApiVersionMinor(7)
+                .setServerInfo("ESPHome ".repeat(40)).build();
+        PingRequest pingRequest = PingRequest.getDefaultInstance();
+        byte[] first = streamHandler.encodeFrame(helloResponse);
+        byte[] second = streamHandler.encodeFrame(pingRequest);
+
+        // One byte at a time
+        for (byte b : concat(first, second)) {
+            ByteBuffer chunk = ByteBuffer.allocate(1);
+            chunk.put(b);
+            streamHandler.processReceivedData(chunk);
+        }
+        assertEquals(List.of(helloResponse, pingRequest), received);
+
+        // Several frames in a single read
+        received.clear();
+        ByteBuffer chunk = ByteBuffer.allocate(first.length + second.length + first.length);
+        chunk.put(concat(first, second)).put(first);
+        streamHandler.processReceivedData(chunk);
+        assertEquals(List.of(helloResponse, pingRequest, helloResponse), received);
+    }
+
+    @Test
+    void testDecodeLargeFrames() throws Exception {
+        List<GeneratedMessageV3> received = new ArrayList<>();
+        PlainTextStreamHandler streamHandler = collectingStreamHandler(received);
+
+        // One frame needing a larger reassembly buffer, one above the segmentation threshold
+        HelloResponse medium = HelloResponse.newBuilder().setServerInfo("m".repeat(3000)).build();
+        HelloResponse large = HelloResponse.newBuilder()
+                .setServerInfo("l".repeat(PlainTextStreamHandler.SEGMENTED_FRAME_THRESHOLD * 3)).build();
+        byte[] stream = concat(concat(streamHandler.encodeFrame(medium), streamHandler.encodeFrame(large)),
+                streamHandler.encodeFrame(medium));
+
+        int chunkSize = 1000;
+        for (int offset = 0; offset < stream.length; offset += chunkSize) {
+            ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+            chunk.put(stream, offset, Math.min(chunkSize, stream.length - offset));
+            streamHandler.processReceivedData(chunk);
+        }
+        assertEquals(List.of(medium, large, medium), received);
+    }
+
+    @Test
+    void testRejectFrameAboveLimit() throws Exception {
+        List<GeneratedMessageV3> received = new ArrayList<>();
+        PlainTextStreamHandler streamHandler = collectingStreamHandler(received, 1024);
+
+        byte[] frame = streamHandler.encodeFrame(HelloResponse.newBuilder().setServerInfo("x".repeat(2000)).build());
+        ByteBuffer chunk = ByteBuffer.allocate(frame.length);
+        chunk.put(frame);
+        assertThrows(ProtocolAPIError.class, () -> streamHandler.processReceivedData(chunk));
+        assertTrue(received.isEmpty());
+    }
+
+    @Test
+    void testRejectNegativeFrameLength() {
+        List<GeneratedMessageV3> received = new ArrayList<>();
+        PlainTextStreamHandler streamHandler = collectingStreamHandler(received);
+
+        // Length varint decoding to -1, followed by a message type
+        byte[] frame = new byte[] { 0x00, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 0x01 };
+        ByteBuffer chunk = ByteBuffer.allocate(frame.length);
+        chunk.put(frame);
+        assertThrows(ProtocolAPIError.class, () -> streamHandler.processReceivedData(chunk));
+        assertTrue(received.isEmpty());
+    }
+
+    private static PlainTextStreamHandler collectingStreamHandler(List<GeneratedMessageV3> received) {
+        return collectingStreamHandler(received, PlainTextStreamHandler.DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Stream handler adding the decoded messages to the list, and failing the test on anything else
+     */
+    private static PlainTextStreamHandler collectingStreamHandler(List<GeneratedMessageV3> received,
+            int maxFrameSize) {
+        return new PlainTextStreamHandler(collectingListener(received), maxFrameSize);
+    }
+
+    private static PacketListener collectingListener(List<GeneratedMessageV3> received) {
+        return new PacketListener() {
+            @Override
+            public void onPacket(int messageType, GeneratedMessageV3 message) {
+                received.add(message);
+            }
+
+            @Override
+            public void onEndOfStream() {
+                fail();
+            }
+
+            @Override
+            public void onParseError() {
+                fail();
+            }
+        };
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
 }
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.handler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.esphome.api.PingRequest;
+import io.esphome.api.SensorStateResponse;
+import no.seime.openhab.binding.esphome.internal.handler.InboundMessageQueue.Offer;
+
+public class InboundMessageQueueTest {
+
+    private static final int SENSOR_STATE = 25;
+    private static final int PING_REQUEST = 7;
+
+    private final List<Boolean> reading = new ArrayList<>();
+
+    @Test
+    void testConflateStatesWhenFull() {
+        InboundMessageQueue queue = new InboundMessageQueue(2, reading::add);
+
+        assertEquals(Offer.QUEUED, queue.offer(SENSOR_STATE, sensorState(1, 1)));
+        assertEquals(Offer.QUEUED, queue.offer(SENSOR_STATE, sensorState(2, 1)));
+
+        // Full, replaces the pending state of sensor 1, and queues sensor 3 which has nothing pending
+        assertEquals(Offer.CONFLATED, queue.offer(SENSOR_STATE, sensorState(1, 2)));
+        assertEquals(Offer.QUEUED_OVER_CAPACITY, queue.offer(SENSOR_STATE, sensorState(3, 1)));
+        assertEquals(Offer.CONFLATED, queue.offer(SENSOR_STATE, sensorState(3, 2)));
+        // Never dropped
+        assertEquals(Offer.QUEUED_OVER_CAPACITY, queue.offer(PING_REQUEST, PingRequest.getDefaultInstance()));
+
+        assertEquals(2, queue.getConflated());
+        assertEquals(2, queue.getOverCapacity());
+
+        assertEquals(sensorState(1, 2), queue.poll().message);
+        assertEquals(sensorState(2, 1), queue.poll().message);
+        assertEquals(sensorState(3, 2), queue.poll().message);
+        assertEquals(PingRequest.getDefaultInstance(), queue.poll().message);
+        assertNull(queue.poll());
+
+        // Handled states are not replaced
+        assertEquals(Offer.QUEUED, queue.offer(SENSOR_STATE, sensorState(1, 3)));
+        assertEquals(sensorState(1, 3), queue.poll().message);
+    }
+
+    @Test
+    void testPauseReadingUntilDrained() {
+        InboundMessageQueue queue = new InboundMessageQueue(4, reading::add);
+        for (int key = 1; key <= 3; key++) {
+            queue.offer(SENSOR_STATE, sensorState(key, 1));
+        }
+        assertEquals(List.of(), reading);
+
+        queue.offer(PING_REQUEST, PingRequest.getDefaultInstance());
+        assertEquals(List.of(false), reading);
+
+        // Resumed once drained to half the capacity
+        queue.poll();
+        assertEquals(List.of(false), reading);
+        queue.poll();
+        assertEquals(List.of(false, true), reading);
+        queue.poll();
+        assertEquals(List.of(false, true), reading);
+    }
+
+    private static SensorStateResponse sensorState(int key, float state) {
+        return SensorStateResponse.newBuilder().setKey(key).setState(state).build();
+    }
+}
@@ -2,7 +2,9 @@ package no.seime.openhab.binding.esphome.internal.message;
 
 import static org.mockito.ArgumentMatchers.isA;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
@@ -18,6 +20,7 @@ import com.google.protobuf.GeneratedMessageV3;
 import no.seime.openhab.binding.esphome.internal.BindingConstants;
 import no.seime.openhab.binding.esphome.internal.comm.ProtocolAPIError;
 import no.seime.openhab.binding.esphome.internal.handler.ESPHomeHandler;
+import no.seime.openhab.binding.esphome.internal.util.CommandDebouncer;
 
 @ExtendWith(MockitoExtension.class)
 public class ClimateMessageHandlerTest {
@@ -25,8 +28,16 @@ public class ClimateMessageHandlerTest {
     @Mock
     ESPHomeHandler handler;
 
+    CommandDebouncer commandDebouncer = new CommandDebouncer();
+
+    @AfterEach
+    public void shutdown() {
+        commandDebouncer.stop();
+    }
+
     @Test
     public void testAggregateCommand() throws InterruptedException, ProtocolAPIError {
+        when(handler.getCommandDebouncer()).thenReturn(commandDebouncer);
         ClimateMessageHandler messageHandler = new ClimateMessageHandler(handler);
 
         Configuration fanModeConfig = new Configuration();
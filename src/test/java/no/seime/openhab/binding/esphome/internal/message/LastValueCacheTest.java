@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.message;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.openhab.core.config.core.Configuration;
+import org.openhab.core.thing.Channel;
+import org.openhab.core.thing.ChannelUID;
+import org.openhab.core.thing.binding.builder.ChannelBuilder;
+
+import no.seime.openhab.binding.esphome.internal.BindingConstants;
+
+public class LastValueCacheTest {
+
+    private final LastValueCache cache = new LastValueCache();
+
+    @Test
+    public void testSuppressUnchangedValues() {
+        Channel channel = channel(null);
+
+        assertTrue(cache.updateFloat(1, channel, 20.5f, false));
+        assertFalse(cache.updateFloat(1, channel, 20.5f, false));
+        assertTrue(cache.updateFloat(1, channel, 20.6f, false));
+        assertTrue(cache.updateFloat(1, channel, 20.6f, true));
+        assertFalse(cache.updateFloat(1, channel, 0, true));
+
+        assertTrue(cache.updateBoolean(2, true, false));
+        assertFalse(cache.updateBoolean(2, true, false));
+        assertTrue(cache.updateBoolean(2, false, false));
+
+        cache.clear();
+        assertTrue(cache.updateFloat(1, channel, 20.6f, true));
+        assertTrue(cache.updateBoolean(2, false, false));
+    }
+
+    @Test
+    public void testDeadband() {
+        Channel absolute = channel("0.5");
+        assertTrue(cache.updateFloat(1, absolute, 20, false));
+        assertFalse(cache.updateFloat(1, absolute, 20.3f, false));
+        // Compared to the last published value, not the last received
+        assertFalse(cache.updateFloat(1, absolute, 19.6f, false));
+        assertTrue(cache.updateFloat(1, absolute, 20.6f, false));
+
+        Channel relative = channel("10%");
+        assertTrue(cache.updateFloat(2, relative, 1000, false));
+        assertFalse(cache.updateFloat(2, relative, 1090, false));
+        assertTrue(cache.updateFloat(2, relative, 1110, false));
+    }
+
+    private static Channel channel(String deadband) {
+        Configuration configuration = new Configuration();
+        if (deadband != null) {
+            configuration.put(BindingConstants.DEADBAND, deadband);
+        }
+        return ChannelBuilder.create(new ChannelUID("esphome:device:1:sensor")).withConfiguration(configuration)
+                .build();
+    }
+}
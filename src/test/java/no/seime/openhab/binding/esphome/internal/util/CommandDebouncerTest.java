@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.util;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class CommandDebouncerTest {
+
+    private final CommandDebouncer debouncer = new CommandDebouncer();
+
+    private final List<String> sent = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    public void shutdown() {
+        debouncer.stop();
+    }
+
+    @Test
+    public void testCommandsWithinDelayAreMerged() {
+        Object device = new Object();
+        long start = System.nanoTime();
+        submit(device, 1, 200, "a");
+        submit(device, 1, 200, "b");
+        // Different entity, sent separately
+        submit(device, 2, 200, "x");
+        submit(device, 1, 200, "c");
+
+        await().until(() -> sent.size() == 2);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(elapsedMillis >= 200, "Sent after " + elapsedMillis + " ms");
+        assertTrue(sent.containsAll(List.of("abc", "x")), "Sent " + sent);
+    }
+
+    @Test
+    public void testCommandAfterFlushStartsNewCommand() throws InterruptedException {
+        Object device = new Object();
+        submit(device, 1, 100, "a");
+        await().until(() -> sent.size() == 1);
+
+        long start = System.nanoTime();
+        submit(device, 1, 100, "b");
+        Thread.sleep(50);
+        assertEquals(1, sent.size());
+
+        await().until(() -> sent.size() == 2);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(elapsedMillis >= 100, "Sent after " + elapsedMillis + " ms");
+        assertEquals(List.of("a", "b"), sent);
+    }
+
+    @Test
+    public void testCancelDropsPendingCommandsOfDevice() throws InterruptedException {
+        Object disposed = new Object();
+        Object other = new Object();
+        submit(disposed, 1, 100, "a");
+        submit(other, 1, 100, "b");
+
+        debouncer.cancel(disposed);
+
+        await().until(() -> sent.size() == 1);
+        Thread.sleep(200);
+        assertEquals(List.of("b"), sent);
+    }
+
+    @Test
+    public void testEntitiesOfDifferentTypesWithSameKeyAreSeparate() {
+        Object device = new Object();
+        submit(device, 1, 100, "a");
+        // Another type of entity with the same key, with another type of command
+        debouncer.submit(device, "select", 1, 100, () -> new ArrayList<String>(), list -> list.add("x"),
+                list -> sent.add(String.join("", list)));
+        submit(device, 1, 100, "b");
+
+        await().until(() -> sent.size() == 2);
+        assertTrue(sent.containsAll(List.of("ab", "x")), "Sent " + sent);
+    }
+
+    private void submit(Object device, int key, long delayMillis, String command) {
+        debouncer.submit(device, "switch", key, delayMillis, StringBuilder::new, builder -> builder.append(command),
+                builder -> sent.add(builder.toString()));
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.util;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class LivenessMonitorTest {
+
+    private final LivenessMonitor monitor = new LivenessMonitor(20, 16);
+
+    @AfterEach
+    public void shutdown() {
+        monitor.stop();
+    }
+
+    @Test
+    public void testBusyConnectionIsNotPinged() throws InterruptedException {
+        TestTarget target = new TestTarget();
+        monitor.watch(target, 200, 600);
+
+        // Receiving more often than the idle time, for longer than the dead time
+        for (int i = 0; i < 20; i++) {
+            target.lastReceive = System.nanoTime();
+            Thread.sleep(50);
+        }
+        assertEquals(0, target.pings.get());
+        assertFalse(target.dead.get());
+    }
+
+    @Test
+    public void testSilentConnectionIsPingedThenDead() {
+        TestTarget target = new TestTarget();
+        long start = System.nanoTime();
+        monitor.watch(target, 200, 600);
+
+        await().until(() -> target.dead.get());
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(elapsedMillis >= 600, "Declared dead after " + elapsedMillis + " ms");
+        assertTrue(target.pings.get() >= 2, "Pinged " + target.pings.get() + " times");
+    }
+
+    @Test
+    public void testCancelledConnectionIsNotChecked() throws InterruptedException {
+        TestTarget target = new TestTarget();
+        monitor.watch(target, 100, 200).cancel();
+
+        Thread.sleep(400);
+        assertEquals(0, target.pings.get());
+        assertFalse(target.dead.get());
+    }
+
+    private static class TestTarget implements LivenessMonitor.Target {
+        private volatile long lastReceive = System.nanoTime();
+        private final AtomicInteger pings = new AtomicInteger();
+        private final AtomicBoolean dead = new AtomicBoolean();
+
+        @Override
+        public long lastReceiveNanos() {
+            return lastReceive;
+        }
+
+        @Override
+        public void onIdle() {
+            pings.incrementAndGet();
+        }
+
+        @Override
+        public void onDead() {
+            dead.set(true);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2023 Contributors to the Seime Openhab Addons project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+package no.seime.openhab.binding.esphome.internal.util;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class ReconnectCoordinatorTest {
+
+    private final ReconnectCoordinator coordinator = new ReconnectCoordinator(2, 60_000);
+
+    @AfterEach
+    public void shutdown() {
+        coordinator.stop();
+    }
+
+    @Test
+    public void testBackoffWithJitter() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(ReconnectCoordinator.delayMillis(0, random) <= ReconnectCoordinator.INITIAL_JITTER_MILLIS);
+
+            long first = ReconnectCoordinator.delayMillis(1, random);
+            assertTrue(first >= ReconnectCoordinator.BASE_DELAY_MILLIS / 2);
+            assertTrue(first <= ReconnectCoordinator.BASE_DELAY_MILLIS);
+
+            long third = ReconnectCoordinator.delayMillis(3, random);
+            assertTrue(third >= ReconnectCoordinator.BASE_DELAY_MILLIS * 2);
+            assertTrue(third <= ReconnectCoordinator.BASE_DELAY_MILLIS * 4);
+
+            assertTrue(ReconnectCoordinator.delayMillis(100, random) <= ReconnectCoordinator.MAX_DELAY_MILLIS);
+        }
+    }
+
+    @Test
+    public void testAdmitsLimitedNumberPreferringHealthy() throws InterruptedException {
+        List<String> connected = new CopyOnWriteArrayList<>();
+        coordinator.schedule("a", 0, false, () -> connected.add("a"));
+        coordinator.schedule("b", 0, false, () -> connected.add("b"));
+        await().until(() -> connected.size() == 2);
+
+        for (String device : List.of("c", "d", "healthy")) {
+            coordinator.schedule(device, 0, "healthy".equals(device), () -> connected.add(device));
+        }
+        // All permits are taken, so everything scheduled since waits
+        Thread.sleep(ReconnectCoordinator.INITIAL_JITTER_MILLIS + 200);
+        assertEquals(2, connected.size());
+
+        // Releasing a permit admits the healthy device before the others waiting
+        coordinator.release("a");
+        await().until(() -> connected.size() == 3);
+        assertEquals("healthy", connected.get(2));
+
+        // Cancelled devices give back their permit
+        coordinator.cancel("b");
+        await().until(() -> connected.size() == 4);
+    }
+
+    @Test
+    public void testMorePermitsAdmitWaitingDevices() {
+        List<String> connected = new CopyOnWriteArrayList<>();
+        for (String device : List.of("a", "b", "c", "d")) {
+            coordinator.schedule(device, 0, false, () -> connected.add(device));
+        }
+        await().until(() -> connected.size() == 2);
+
+        coordinator.setMaxConcurrentConnects(4);
+        await().until(() -> connected.size() == 4);
+    }
+}